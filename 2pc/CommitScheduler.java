@@ -0,0 +1,129 @@
+/**
+ * CommitScheduler.java
+ * author: Yukun Jiang
+ * Date: April 13, 2023
+ *
+ * This is the implementation for the CommitScheduler instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * The conflict index of the Coordinator: which in-flight txn claims which source image
+ * A commit that reuses a claimed source is held back instead of being proposed,
+ * since the participant could only DENY it. It is released once the source is free again,
+ * or failed right away if the txn holding the source has committed and consumed it
+ *
+ * A commit is not held forever: it fails once it has waited past a deadline,
+ * or as soon as one of the txns it waits on cannot be expected to finish soon
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+public class CommitScheduler {
+  enum Verdict { RUN, HOLD, FAIL }
+
+  /* source "node:file" -> in-flight txn that claims it */
+  private final HashMap<String, TxnMasterRecord> claims;
+  /* commits waiting for their sources -> when they started waiting, in arrival order */
+  private final LinkedHashMap<TxnMasterRecord, Long> held;
+
+  public CommitScheduler() {
+    claims = new HashMap<>();
+    held = new LinkedHashMap<>();
+  }
+
+  /* a newly started commit, claims all its sources if it may run */
+  public synchronized Verdict admit(TxnMasterRecord record) {
+    Verdict verdict = judge(record);
+    if (verdict == Verdict.RUN) {
+      claimAll(record);
+    } else if (verdict == Verdict.HOLD) {
+      held.put(record, System.currentTimeMillis());
+    }
+    return verdict;
+  }
+
+  /* put back a single claim upon recovery */
+  public synchronized void claim(TxnMasterRecord record, String source) {
+    claims.put(source, record);
+  }
+
+  /* participant has ACKed the decision, so it no longer locks its sources of this txn */
+  public synchronized void release(TxnMasterRecord record, String participant) {
+    String prefix = participant + TxnMasterRecord.SEP;
+    for (String source : record.sources) {
+      if (source.startsWith(prefix) && claims.get(source) == record) {
+        claims.remove(source);
+      }
+    }
+  }
+
+  /* sort out the held commits, in arrival order, into those that may run now and those that fail */
+  public synchronized void reschedule(
+      ArrayList<TxnMasterRecord> to_run, ArrayList<TxnMasterRecord> to_fail) {
+    Iterator<TxnMasterRecord> it = held.keySet().iterator();
+    while (it.hasNext()) {
+      TxnMasterRecord record = it.next();
+      Verdict verdict = judge(record);
+      if (verdict == Verdict.RUN) {
+        claimAll(record);
+        to_run.add(record);
+        it.remove();
+      } else if (verdict == Verdict.FAIL) {
+        to_fail.add(record);
+        it.remove();
+      }
+    }
+  }
+
+  /*
+    Give up on the held commits that have waited longer than max_hold,
+    or that wait on a txn the stalled test says will not release its sources soon
+   */
+  public synchronized void expire(
+      long max_hold, Predicate<TxnMasterRecord> stalled, ArrayList<TxnMasterRecord> to_fail) {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<TxnMasterRecord, Long>> it = held.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<TxnMasterRecord, Long> entry = it.next();
+      TxnMasterRecord record = entry.getKey();
+      boolean give_up = now - entry.getValue() > max_hold;
+      for (String source : record.sources) {
+        TxnMasterRecord owner = claims.get(source);
+        if (owner != null && owner != record && stalled.test(owner)) {
+          give_up = true;
+          break;
+        }
+      }
+      if (give_up) {
+        to_fail.add(record);
+        it.remove();
+      }
+    }
+  }
+
+  private Verdict judge(TxnMasterRecord record) {
+    Verdict verdict = Verdict.RUN;
+    for (String source : record.sources) {
+      TxnMasterRecord owner = claims.get(source);
+      if (owner == null || owner == record) {
+        continue;
+      }
+      if (owner.decision == TxnDecision.COMMIT) {
+        // source image is consumed by a committed collage
+        return Verdict.FAIL;
+      }
+      verdict = Verdict.HOLD;
+    }
+    return verdict;
+  }
+
+  private void claimAll(TxnMasterRecord record) {
+    for (String source : record.sources) {
+      claims.put(source, record);
+    }
+  }
+}
@@ -8,6 +8,22 @@
  *
  * The message from Coordinator send to Participant
  * corresponds to either phase1's proposal or phase2' decision
+ *
+ * A phase1 proposal is streamed as a sequence of image chunks,
+ * each carrying its byte offset into the full image of total_len bytes
+ * it opens with a probe carrying only the image's content hash,
+ * chunks follow only if the participant does not have the image cached
+ * every chunk and probe carries the epoch of the stream, i.e. how many times
+ * it has been resumed, which the participant echoes in its chunk ACK
+ *
+ * Probes of several txns to the same participant may travel together
+ * in one envelope message whose batch holds the individual proposals,
+ * so may the decisions answering a participant's inquiry after reboot
+ *
+ * A heartbeat carries nothing, it pings a participant that has been quiet
+ *
+ * In a tree-structured txn, the proposal to a relay also names the nodes
+ * it relays for and their files, see TxnMasterRecord.relay
  */
 
 import java.io.*;
@@ -17,30 +33,76 @@ public class CoordinatorMsg implements Serializable {
   public final int txn_id;
   public final TxnPhase phase;
   public final String filename;
+  /* a chunk of the composite image starting at offset */
   public final byte[] img;
+  public final String img_hash;
+  public final int offset;
+  public final int total_len;
+  public final int epoch;
   public final String[] resource_requested;
   public final TxnDecision decision;
+  /* non-null only for an envelope of several proposals or decisions */
+  public final CoordinatorMsg[] batch;
+  /* non-null only for a proposal to a relay: relay_to[k] is asked for relay_files[k] */
+  public final String[] relay_to;
+  public final String[][] relay_files;
 
-  public CoordinatorMsg(int txn_id, TxnPhase phase, String filename, byte[] img,
-      String[] resource_requested, TxnDecision decision) {
+  public CoordinatorMsg(int txn_id, TxnPhase phase, String filename, byte[] img, String img_hash,
+      int offset, int total_len, int epoch, String[] resource_requested, TxnDecision decision,
+      CoordinatorMsg[] batch, String[] relay_to, String[][] relay_files) {
     this.txn_id = txn_id;
     this.phase = phase;
     this.filename = filename;
     this.img = img;
+    this.img_hash = img_hash;
+    this.offset = offset;
+    this.total_len = total_len;
+    this.epoch = epoch;
     this.resource_requested = resource_requested;
     this.decision = decision;
+    this.batch = batch;
+    this.relay_to = relay_to;
+    this.relay_files = relay_files;
   }
 
-  /* factory method to generate Phase I message */
-  public static CoordinatorMsg GeneratePhaseIMsg(
-      int txn_id, String filename, byte[] img, String[] resource_requested) {
+  /* factory method to generate Phase I message carrying img[offset, offset + len) */
+  public static CoordinatorMsg GeneratePhaseIMsg(int txn_id, String filename, byte[] img,
+      String img_hash, int offset, int len, int epoch, String[] resource_requested,
+      String[] relay_to, String[][] relay_files) {
+    byte[] chunk = Arrays.copyOfRange(img, offset, offset + len);
+    return new CoordinatorMsg(txn_id, TxnPhase.PHASE_I, filename, chunk, img_hash, offset,
+        img.length, epoch, resource_requested, TxnDecision.UNDECIDED, null, relay_to, relay_files);
+  }
+
+  /* factory method to generate Phase I probe, i.e. an empty chunk naming the image by hash */
+  public static CoordinatorMsg GeneratePhaseIProbeMsg(int txn_id, String filename,
+      String img_hash, int total_len, int epoch, String[] resource_requested, String[] relay_to,
+      String[][] relay_files) {
+    return new CoordinatorMsg(txn_id, TxnPhase.PHASE_I, filename, new byte[0], img_hash, 0,
+        total_len, epoch, resource_requested, TxnDecision.UNDECIDED, null, relay_to, relay_files);
+  }
+
+  /* factory method to generate an envelope of several messages of a phase to one participant */
+  public static CoordinatorMsg GenerateBatchMsg(TxnPhase phase, CoordinatorMsg[] msgs) {
     return new CoordinatorMsg(
-        txn_id, TxnPhase.PHASE_I, filename, img, resource_requested, TxnDecision.UNDECIDED);
+        -1, phase, null, null, null, 0, 0, 0, null, TxnDecision.UNDECIDED, msgs, null, null);
   }
 
   /* factory method to generate Phase II message */
   public static CoordinatorMsg GeneratePhaseIIMsg(int txn_id, TxnDecision decision) {
-    return new CoordinatorMsg(txn_id, TxnPhase.PHASE_II, null, null, null, decision);
+    return new CoordinatorMsg(
+        txn_id, TxnPhase.PHASE_II, null, null, null, 0, 0, 0, null, decision, null, null, null);
+  }
+
+  /* factory method to generate a heartbeat ping */
+  public static CoordinatorMsg GenerateHeartbeatMsg() {
+    return new CoordinatorMsg(-1, TxnPhase.HEARTBEAT, null, null, null, 0, 0, 0, null,
+        TxnDecision.UNDECIDED, null, null, null);
+  }
+
+  /* a probe or the final chunk, i.e. a Phase I message the participant may answer with its vote */
+  public boolean awaitsVote() {
+    return phase == TxnPhase.PHASE_I && (img.length == 0 || offset + img.length >= total_len);
   }
 
   /* Wrapper for the PL message sending */
@@ -70,9 +132,15 @@ public class CoordinatorMsg implements Serializable {
   }
 
   public String toString() {
-    if (phase == TxnPhase.PHASE_I) {
+    if (batch != null) {
+      return "batch of " + batch.length + " " + phase + " msgs " + Arrays.toString(batch);
+    } else if (phase == TxnPhase.HEARTBEAT) {
+      return "heartbeat ping";
+    } else if (phase == TxnPhase.PHASE_I) {
       return "txn: " + txn_id + " phase:" + phase.toString() + " filename:" + filename
-          + " resource_request:" + Arrays.toString(resource_requested);
+          + ((img.length == 0) ? " probe:" + img_hash : " chunk:" + offset + "/" + total_len)
+          + " resource_request:" + Arrays.toString(resource_requested)
+          + ((relay_to == null) ? "" : " relay_to:" + Arrays.toString(relay_to));
     } else {
       return "txn: " + txn_id + " phase:" + phase.toString() + " decision:" + decision;
     }
@@ -0,0 +1,105 @@
+/**
+ * FailureDetector.java
+ * author: Yukun Jiang
+ * Date: April 14, 2023
+ *
+ * This is the implementation for the FailureDetector instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * The Coordinator's view of which participants are alive
+ * every message from a participant counts as a heartbeat, a participant
+ * with something in flight that has been quiet for a while is pinged, and one
+ * that leaves its ping unanswered past the suspicion threshold is suspected dead
+ * until it is heard from again
+ *
+ * Silence is measured from the ping rather than from the last message,
+ * so a live participant always gets a full round trip to answer
+ * a participant is pinged once and only pinged again if that goes unanswered,
+ * and one with nothing in flight is not watched at all, unless it is suspected
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+public class FailureDetector {
+  /* quiet for this long, the participant is pinged */
+  private final long ping_after;
+  /* ping unanswered for this long, the participant is suspected dead, and pinged again */
+  private final long suspect_after;
+
+  /* participant -> when it was last heard from, or first talked to */
+  private final HashMap<String, Long> last_heard;
+  /* participant -> when the oldest ping since it was last heard from went out */
+  private final HashMap<String, Long> first_ping;
+  /* participant -> when the latest ping went out */
+  private final HashMap<String, Long> last_ping;
+  private final HashSet<String> suspected;
+
+  public FailureDetector(long ping_after, long suspect_after) {
+    this.ping_after = ping_after;
+    this.suspect_after = suspect_after;
+    this.last_heard = new HashMap<>();
+    this.first_ping = new HashMap<>();
+    this.last_ping = new HashMap<>();
+    this.suspected = new HashSet<>();
+  }
+
+  /* about to talk to a participant, start watching it if not yet */
+  public synchronized void watch(String node) {
+    last_heard.putIfAbsent(node, System.currentTimeMillis());
+  }
+
+  /* got a message from the participant, return true if it was suspected until now */
+  public synchronized boolean heard(String node) {
+    last_heard.put(node, System.currentTimeMillis());
+    first_ping.remove(node);
+    last_ping.remove(node);
+    return suspected.remove(node);
+  }
+
+  public synchronized boolean isSuspected(String node) {
+    return suspected.contains(node);
+  }
+
+  /*
+    One round of inspection, busy are the participants with something in flight
+    the others stop being watched, except the suspected ones, which are still
+    pinged now and then to notice when they are back
+    fill in the participants to be pinged now
+    return the ones that just turned suspected
+   */
+  public synchronized ArrayList<String> inspect(Set<String> busy, ArrayList<String> to_ping) {
+    long now = System.currentTimeMillis();
+    ArrayList<String> newly_suspected = new ArrayList<>();
+    Iterator<Map.Entry<String, Long>> it = last_heard.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Long> entry = it.next();
+      String node = entry.getKey();
+      if (!busy.contains(node) && !suspected.contains(node)) {
+        // nothing to wait for from it
+        it.remove();
+        first_ping.remove(node);
+        last_ping.remove(node);
+        continue;
+      }
+      if (now - entry.getValue() <= ping_after) {
+        continue;
+      }
+      Long pinged = last_ping.get(node);
+      if (pinged == null || now - pinged > suspect_after) {
+        // not pinged yet, or the last ping went unanswered
+        to_ping.add(node);
+        first_ping.putIfAbsent(node, now);
+        last_ping.put(node, now);
+      }
+      if (now - first_ping.get(node) > suspect_after && suspected.add(node)) {
+        newly_suspected.add(node);
+      }
+    }
+    return newly_suspected;
+  }
+}
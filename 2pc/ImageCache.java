@@ -0,0 +1,114 @@
+/**
+ * ImageCache.java
+ * author: Yukun Jiang
+ * Date: April 12, 2023
+ *
+ * This is the implementation for the ImageCache instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * A bounded LRU cache of composite images recently proposed to a participant
+ * images are content-addressed by their SHA-256 and kept on disk,
+ * so a retried or re-driven proposal only needs to carry the hash
+ *
+ * The images live in a directory of their own, apart from the user's
+ * source images, so they can never be mistaken for one another
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ImageCache {
+  private static final String CACHE_PREFIX = "CACHE_IMG_";
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final File dir;
+  private final int max_entries;
+  private final long max_bytes;
+  /* hash -> image size, in least recently used order */
+  private final LinkedHashMap<String, Long> entries;
+  private long total_bytes;
+
+  public ImageCache(File dir, int max_entries, long max_bytes) {
+    this.dir = dir;
+    this.max_entries = max_entries;
+    this.max_bytes = max_bytes;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    this.total_bytes = 0;
+    /* pick up what is still on disk from before a crash, oldest first */
+    File[] on_disk = dir.listFiles((d, name) -> name.startsWith(CACHE_PREFIX));
+    if (on_disk != null) {
+      Arrays.sort(on_disk, Comparator.comparingLong(File::lastModified));
+      for (File f : on_disk) {
+        entries.put(f.getName().substring(CACHE_PREFIX.length()), f.length());
+        total_bytes += f.length();
+      }
+      evict();
+    }
+  }
+
+  /* content address of an image */
+  public static String hashOf(byte[] img) {
+    try {
+      byte[] digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(img);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /* null on cache miss */
+  public synchronized byte[] get(String hash) {
+    if (hash == null || !entries.containsKey(hash)) {
+      return null;
+    }
+    File f = fileOf(hash);
+    try {
+      byte[] img = Files.readAllBytes(f.toPath());
+      f.setLastModified(System.currentTimeMillis());
+      return img;
+    } catch (IOException e) {
+      // gone from disk underneath us, forget about it
+      total_bytes -= entries.remove(hash);
+      return null;
+    }
+  }
+
+  /* move a fully assembled image file into the cache */
+  public synchronized void adopt(String hash, File img_file) {
+    if (hash == null || entries.containsKey(hash)) {
+      return;
+    }
+    long size = img_file.length();
+    if (!img_file.renameTo(fileOf(hash))) {
+      return;
+    }
+    entries.put(hash, size);
+    total_bytes += size;
+    evict();
+  }
+
+  private File fileOf(String hash) {
+    return new File(dir, CACHE_PREFIX + hash);
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (it.hasNext() && (entries.size() > max_entries || total_bytes > max_bytes)) {
+      Map.Entry<String, Long> eldest = it.next();
+      fileOf(eldest.getKey()).delete();
+      total_bytes -= eldest.getValue();
+      it.remove();
+    }
+  }
+}
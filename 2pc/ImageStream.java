@@ -0,0 +1,157 @@
+/**
+ * ImageStream.java
+ * author: Yukun Jiang
+ * Date: April 17, 2023
+ *
+ * This is the implementation for the ImageStream instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * Progress of streaming one txn's composite image to one participant
+ * used by whoever proposes, i.e. the Coordinator or a relay on its behalf
+ *
+ * The image is first offered by its hash, and only a cache miss starts
+ * the chunks. acked is how many bytes the participant holds in order,
+ * sent is how far we have sent, chunks in [acked, sent) are in flight
+ * the proposer does the timing and decides when a stalled stream resumes
+ *
+ * Each resume starts a new epoch from acked, which the participant echoes back.
+ * An ACK of the current epoch reporting less than where the epoch started means
+ * the participant lost its partial image, e.g. upon reboot, so the stream rewinds
+ * to what it has, an older or reordered ACK can never report that little
+ *
+ * The timeouts both sides stream by are defined here as well
+ */
+
+import java.util.ArrayList;
+
+public class ImageStream {
+  /* image is streamed in chunks of this size, with at most STREAM_WINDOW bytes in flight */
+  public static final int CHUNK_SIZE = 64 * 1024;
+  public static final int STREAM_WINDOW = 4 * CHUNK_SIZE;
+  /* how many times a stalled stream resumes from its acked offset before it's deemed DENIAL */
+  public static final int CHUNK_RETRIES = 1;
+
+  /*
+    Timing shared by Server and the relays, both inspect their streams every INTERVAL
+    a message is answered within TIMEOUT since one-way latency is at most 3 seconds as specified
+   */
+  public static final long INTERVAL = 1000L;
+  public static final long TIMEOUT = 6000L;
+  /* how long a participant is given to ask its user and flush before it votes */
+  public static final long VOTE_ALLOWANCE = 2000L;
+  /* a stream to a node relayed for stalls after a round trip plus that node's own vote */
+  public static final long CHILD_TIMEOUT = TIMEOUT + VOTE_ALLOWANCE;
+  /*
+    The longest a relay takes to vote for its group once it holds the image:
+    its own vote, every attempt at a stalled node, and the inspection round noticing the last one
+   */
+  public static final long GROUP_BUDGET =
+      VOTE_ALLOWANCE + (CHUNK_RETRIES + 1) * CHILD_TIMEOUT + INTERVAL;
+  /* Server waits for a relay's vote this long, i.e. the round trip plus GROUP_BUDGET */
+  public static final long RELAY_TIMEOUT = TIMEOUT + GROUP_BUDGET;
+
+  public final int txn_id;
+  public final String filename;
+  public final byte[] img;
+  public final String img_hash;
+  public final String dest;
+  public final String[] sources;
+  /* the nodes dest relays for and their files, null if dest is not a relay */
+  public final String[] relay_to;
+  public final String[][] relay_files;
+  public int acked;
+  public int sent;
+  /* how many times this stream has been resumed, stamped on every chunk */
+  public int epoch;
+  /* acked when the current epoch started */
+  public int epoch_start;
+  /* resume attempts since the last progress */
+  public int resends;
+  /* only the image hash has been offered, waiting to hear about a cache miss */
+  public boolean probing;
+  /* when something last went out or the participant last made progress */
+  public long active_time;
+
+  public ImageStream(int txn_id, String filename, byte[] img, String img_hash, String dest,
+      String[] sources, String[] relay_to, String[][] relay_files) {
+    this.txn_id = txn_id;
+    this.filename = filename;
+    this.img = img;
+    this.img_hash = img_hash;
+    this.dest = dest;
+    this.sources = sources;
+    this.relay_to = relay_to;
+    this.relay_files = relay_files;
+    this.acked = 0;
+    this.sent = 0;
+    this.epoch = 0;
+    this.epoch_start = 0;
+    this.resends = 0;
+    this.probing = true;
+    this.active_time = System.currentTimeMillis();
+  }
+
+  /* the offer of the image by its hash */
+  public synchronized CoordinatorMsg probe() {
+    active_time = System.currentTimeMillis();
+    return CoordinatorMsg.GeneratePhaseIProbeMsg(
+        txn_id, filename, img_hash, img.length, epoch, sources, relay_to, relay_files);
+  }
+
+  /* the chunks that fit in the window now, at_least_one for the very first or a resumed chunk */
+  public synchronized ArrayList<CoordinatorMsg> pump(boolean at_least_one) {
+    ArrayList<CoordinatorMsg> chunks = new ArrayList<>();
+    while (at_least_one || (sent < img.length && sent - acked < STREAM_WINDOW)) {
+      at_least_one = false;
+      int len = Math.min(CHUNK_SIZE, img.length - sent);
+      chunks.add(CoordinatorMsg.GeneratePhaseIMsg(
+          txn_id, filename, img, img_hash, sent, len, epoch, sources, relay_to, relay_files));
+      sent += len;
+    }
+    if (!chunks.isEmpty()) {
+      active_time = System.currentTimeMillis();
+    }
+    return chunks;
+  }
+
+  /*
+    The participant holds next_offset bytes in order, as of a chunk of the given epoch
+    return true if the stream starts over from acked, i.e. upon its cache miss or
+    after it lost its partial image, so the chunks in flight are moot
+   */
+  public synchronized boolean report(int next_offset, int ack_epoch) {
+    boolean restart = probing;
+    // cache miss, start shipping the actual bytes
+    probing = false;
+    if (next_offset > acked) {
+      acked = next_offset;
+      sent = Math.max(sent, acked);
+      resends = 0;
+      active_time = System.currentTimeMillis();
+    } else if (ack_epoch == epoch && next_offset < epoch_start) {
+      // the participant really holds less than before
+      acked = next_offset;
+      sent = acked;
+      resends = 0;
+      active_time = System.currentTimeMillis();
+      restart = true;
+    }
+    return restart;
+  }
+
+  /*
+    A stalled stream starts over from what the participant has acknowledged
+    return true if it is still probing, i.e. the probe is to be sent again instead of chunks
+   */
+  public synchronized boolean resume() {
+    resends++;
+    epoch++;
+    epoch_start = acked;
+    if (probing) {
+      return true;
+    }
+    // everything was acked but the vote got lost, resend the final chunk to provoke it again
+    sent = (acked < img.length) ? acked : Math.max(0, img.length - 1) / CHUNK_SIZE * CHUNK_SIZE;
+    return false;
+  }
+}
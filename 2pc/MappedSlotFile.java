@@ -0,0 +1,65 @@
+/**
+ * MappedSlotFile.java
+ * author: Yukun Jiang
+ * Date: April 11, 2023
+ *
+ * This is the implementation for the MappedSlotFile instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * A growable array of fixed-size slots backed by a memory-mapped file
+ * writing a slot only dirties the page it lives on, so forcing the mapping
+ * writes back just that page instead of the whole log
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedSlotFile {
+  private static final String MODE = "rw";
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int slot_size;
+  private MappedByteBuffer buffer;
+  private int capacity;
+
+  public MappedSlotFile(String name, int slot_size, int initial_capacity) throws IOException {
+    this.file = new RandomAccessFile(name, MODE);
+    this.channel = file.getChannel();
+    this.slot_size = slot_size;
+    int existing = (int) (channel.size() / slot_size);
+    remap(Math.max(existing, initial_capacity));
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /* view over a single slot, writes go straight into the mapped file */
+  public ByteBuffer slot(int index) throws IOException {
+    if (index >= capacity) {
+      int new_capacity = capacity;
+      while (index >= new_capacity) {
+        new_capacity <<= 1;
+      }
+      remap(new_capacity);
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.position(index * slot_size);
+    view.limit(index * slot_size + slot_size);
+    return view.slice();
+  }
+
+  /* write back dirty pages to disk */
+  public void force() {
+    buffer.force();
+  }
+
+  private void remap(int new_capacity) throws IOException {
+    // mapping beyond the end of file extends it with zeros, i.e. empty slots
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) new_capacity * slot_size);
+    capacity = new_capacity;
+  }
+}
@@ -8,29 +8,73 @@
  *
  * The message from Participant send to Coordinator
  * corresponds to either phase1's vote or phase2' ACK
+ *
+ * While a phase1 proposal is still streaming in, the participant replies
+ * NOT_VOTE with next_offset, i.e. how many image bytes it holds in order,
+ * and the epoch of the chunk it answers
+ *
+ * Replies to a batch of proposals travel back together in one envelope
+ *
+ * A rebooted participant may also inquire about the outcome of
+ * all its in-doubt txns at once, Coordinator answers with their decisions
+ *
+ * A heartbeat reply tells the Coordinator this participant is alive
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 public class ParticipantMsg implements Serializable {
   public final int txn_id;
   public final TxnPhase phase;
   public final TxnVote vote;
+  public final int next_offset;
+  public final int epoch;
+  /* non-null only for an envelope of several replies */
+  public final ParticipantMsg[] batch;
+  /* non-null only for an inquiry about the decision of these txns */
+  public final int[] inquiry;
 
-  public ParticipantMsg(int txn_id, TxnPhase phase, TxnVote vote) {
+  public ParticipantMsg(int txn_id, TxnPhase phase, TxnVote vote, int next_offset, int epoch,
+      ParticipantMsg[] batch, int[] inquiry) {
     this.txn_id = txn_id;
     this.phase = phase;
     this.vote = vote;
+    this.next_offset = next_offset;
+    this.epoch = epoch;
+    this.batch = batch;
+    this.inquiry = inquiry;
   }
 
   /* factory method for Phase I message */
   public static ParticipantMsg GeneratePhaseIMsg(int txn_id, TxnVote vote) {
-    return new ParticipantMsg(txn_id, TxnPhase.PHASE_I, vote);
+    return new ParticipantMsg(txn_id, TxnPhase.PHASE_I, vote, 0, 0, null, null);
+  }
+
+  /* factory method for Phase I image chunk acknowledgement */
+  public static ParticipantMsg GenerateChunkAckMsg(int txn_id, int next_offset, int epoch) {
+    return new ParticipantMsg(
+        txn_id, TxnPhase.PHASE_I, TxnVote.NOT_VOTE, next_offset, epoch, null, null);
+  }
+
+  /* factory method for an envelope of replies to a batch of proposals or decisions */
+  public static ParticipantMsg GenerateBatchMsg(TxnPhase phase, ParticipantMsg[] replies) {
+    return new ParticipantMsg(-1, phase, TxnVote.NOT_VOTE, 0, 0, replies, null);
+  }
+
+  /* factory method for asking the decision of in-doubt txns after reboot */
+  public static ParticipantMsg GenerateInquiryMsg(int[] txn_ids) {
+    return new ParticipantMsg(-1, TxnPhase.PHASE_II, TxnVote.NOT_VOTE, 0, 0, null, txn_ids);
   }
 
   /* factory method for Phase II message */
   public static ParticipantMsg GeneratePhaseIIMsg(int txn_id) {
-    return new ParticipantMsg(txn_id, TxnPhase.PHASE_II, TxnVote.NOT_VOTE);
+    return new ParticipantMsg(txn_id, TxnPhase.PHASE_II, TxnVote.NOT_VOTE, 0, 0, null, null);
+  }
+
+  /* factory method for the reply to a heartbeat ping */
+  public static ParticipantMsg GenerateHeartbeatMsg() {
+    return new ParticipantMsg(-1, TxnPhase.HEARTBEAT, TxnVote.NOT_VOTE, 0, 0, null, null);
   }
 
   /* Wrapper method to send a message through PL */
@@ -60,7 +104,16 @@ public class ParticipantMsg implements Serializable {
   }
 
   public String toString() {
-    if (phase == TxnPhase.PHASE_I) {
+    if (batch != null) {
+      return "batch of " + batch.length + " replies " + Arrays.toString(batch);
+    } else if (inquiry != null) {
+      return "inquiry about in-doubt txns " + Arrays.toString(inquiry);
+    } else if (phase == TxnPhase.HEARTBEAT) {
+      return "heartbeat reply";
+    } else if (phase == TxnPhase.PHASE_I && vote == TxnVote.NOT_VOTE) {
+      return "txn_id: " + txn_id + " phase: " + phase.toString() + " chunk ACK up to "
+          + next_offset;
+    } else if (phase == TxnPhase.PHASE_I) {
       return "txn_id: " + txn_id + " phase: " + phase.toString() + " vote:" + vote.toString();
     } else {
       return "txn_id: " + txn_id + " phase II ACK decision";
@@ -0,0 +1,102 @@
+/**
+ * SendQueue.java
+ * author: Yukun Jiang
+ * Date: April 15, 2023
+ *
+ * This is the implementation for the SendQueue instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * The Coordinator's outbound queue towards a single participant
+ * messages are coalesced by (txn, phase), so asking to send one that is
+ * already queued is a no-op. At most max_in_flight of them are unacknowledged
+ * at a time, the rest wait in arrival order, and an in-flight message
+ * is sent again only once retry_after has passed since its last copy
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class SendQueue {
+  /* a queued message and when its last copy went out, NOT_SENT while waiting for a slot */
+  private static class Entry {
+    public final CoordinatorMsg msg;
+    public long sent_time;
+
+    public Entry(CoordinatorMsg msg) {
+      this.msg = msg;
+      this.sent_time = NOT_SENT;
+    }
+  }
+
+  private static final long NOT_SENT = -1L;
+
+  private final int max_in_flight;
+  private final long retry_after;
+
+  /* (txn id, phase) -> entry, in arrival order */
+  private final LinkedHashMap<Long, Entry> entries;
+  private int in_flight;
+
+  public SendQueue(int max_in_flight, long retry_after) {
+    this.max_in_flight = max_in_flight;
+    this.retry_after = retry_after;
+    this.entries = new LinkedHashMap<>();
+    this.in_flight = 0;
+  }
+
+  private static long key(int txn_id, TxnPhase phase) {
+    return ((long) txn_id << 32) | phase.ordinal();
+  }
+
+  /* queue up a message, return false if the same (txn, phase) is queued already */
+  public synchronized boolean offer(CoordinatorMsg msg) {
+    return entries.putIfAbsent(key(msg.txn_id, msg.phase), new Entry(msg)) == null;
+  }
+
+  /* nothing left to send or to wait an ACK for */
+  public synchronized boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /* participant has acknowledged, stop sending it */
+  public synchronized void ack(int txn_id, TxnPhase phase) {
+    Entry entry = entries.remove(key(txn_id, phase));
+    if (entry != null && entry.sent_time != NOT_SENT) {
+      in_flight--;
+    }
+  }
+
+  /* the copies in flight are presumably lost, make all of them due right away */
+  public synchronized void rewind() {
+    for (Entry entry : entries.values()) {
+      if (entry.sent_time != NOT_SENT) {
+        entry.sent_time = 0;
+      }
+    }
+  }
+
+  /*
+    Pick what should go out now, in arrival order, and mark it sent
+    fresh gets the waiting ones that fit under the in-flight cap
+    resent gets the in-flight ones whose last copy is older than retry_after
+   */
+  public synchronized void drain(
+      ArrayList<CoordinatorMsg> fresh, ArrayList<CoordinatorMsg> resent) {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.sent_time == NOT_SENT) {
+        if (in_flight < max_in_flight) {
+          entry.sent_time = now;
+          in_flight++;
+          fresh.add(entry.msg);
+        }
+      } else if (now - entry.sent_time > retry_after) {
+        entry.sent_time = now;
+        resent.add(entry.msg);
+      }
+    }
+  }
+}
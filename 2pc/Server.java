@@ -8,14 +8,22 @@
  *
  * The Server acts as the single only coordinator for the system
  * and initiate, make decisions on various transaction commits
+ *
+ * In a tree-structured txn it only talks to the relays, see TxnMasterRecord
  */
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandling {
   /**
@@ -28,41 +36,229 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     public Long sent_time;
 
     public String dest;
+    public long timeout;
 
-    public OutboundMsg(CoordinatorMsg msg, String dest) {
+    public OutboundMsg(CoordinatorMsg msg, String dest, long timeout) {
       this.msg = msg;
       this.dest = dest;
+      this.timeout = timeout;
       this.sent_time = System.currentTimeMillis();
     }
 
     public boolean isExpired() {
-      return (System.currentTimeMillis() - this.sent_time) > TIMEOUT;
+      return (System.currentTimeMillis() - this.sent_time) > timeout;
     }
   }
 
   /* big data structure for persistent storage */
   private TxnMasterLog log;
   public static ProjectLib PL;
-  private static final String SEP = ":";
-  private static final int PARTICIPANT_IDX = 0;
-  private static final int FILENAME_IDX = 1;
-
   private static final String MODE = "rws";
 
   private static final String LOG_NAME = "LOG_COORDINATOR";
 
-  /* how often to check if outbound message has timeout */
-  private static final Long INTERVAL = 1000L;
-  /* the timeout threshold for a message since one-way latency is at most 3 seconds as specified */
-  private static final Long TIMEOUT = 6000L;
+  /* Phase I proposals to the same node within this window go out in one envelope */
+  private static final long LINGER = 50L;
+
+  /*
+    A commit held back for its sources fails if they are not free by then
+    the slowest a healthy blocking txn may take: a relay's Phase I timed out and
+    resumed, then the decision passed down to its group and the ACKs back up
+    isStalled gives up on a blocker waiting on a suspected node much earlier,
+    this is for one that never turns suspected, e.g. a relay with a dead node in its group
+   */
+  private static final Long MAX_HOLD =
+      (ImageStream.CHUNK_RETRIES + 1) * ImageStream.RELAY_TIMEOUT + 2 * ImageStream.TIMEOUT;
+
+  /* at most this many Phase II decisions to the same node are awaiting ACK at a time */
+  private static final int MAX_IN_FLIGHT = 8;
 
   private final ConcurrentLinkedDeque<OutboundMsg> outboundMsgs;
 
+  /* Phase II decisions by destination, each resent once per TIMEOUT until ACKed */
+  private final ConcurrentHashMap<String, SendQueue> sendQueues;
+
+  /* Phase I proposals waiting out the linger window, by destination */
+  private final HashMap<String, ArrayList<CoordinatorMsg>> pendingProposals;
+  private final ScheduledExecutorService batcher;
+
+  /* which in-flight txn claims which source, and the commits held back by them */
+  private final CommitScheduler scheduler;
+
+  /* which participants are deemed alive */
+  private final FailureDetector detector;
+
+  /* ongoing Phase I image streams keyed by (txn id, node id) */
+  private final ConcurrentHashMap<Long, ImageStream> imageStreams;
+
   /* protect the recovery stage upon re-booting */
   private boolean finish_recovery = false;
 
   private void timeMsg(CoordinatorMsg msg, String dest) {
-    outboundMsgs.addLast(new OutboundMsg(msg, dest));
+    detector.watch(dest);
+    // a relay acks the other chunks right away, only its vote waits for the group
+    long timeout = (msg.relay_to != null && msg.awaitsVote())
+        ? ImageStream.RELAY_TIMEOUT : ImageStream.TIMEOUT;
+    outboundMsgs.addLast(new OutboundMsg(msg, dest, timeout));
+  }
+
+  /* one message goes out as is, several to the same node travel in one envelope */
+  private void sendTogether(String dest, TxnPhase phase, ArrayList<CoordinatorMsg> msgs) {
+    if (msgs.size() == 1) {
+      msgs.get(0).sendMyselfTo(PL, dest);
+    } else if (msgs.size() > 1) {
+      CoordinatorMsg envelope =
+          CoordinatorMsg.GenerateBatchMsg(phase, msgs.toArray(new CoordinatorMsg[0]));
+      envelope.sendMyselfTo(PL, dest);
+    }
+  }
+
+  private SendQueue queueTo(String dest) {
+    return sendQueues.computeIfAbsent(
+        dest, d -> new SendQueue(MAX_IN_FLIGHT, ImageStream.TIMEOUT));
+  }
+
+  /* queue a Phase II decision, a copy already on its way to dest is not sent again */
+  private void sendDecision(CoordinatorMsg msg, String dest) {
+    detector.watch(dest);
+    queueTo(dest).offer(msg);
+    drainTo(dest);
+  }
+
+  /* send whatever the queue to dest lets out now, nothing while dest is suspected */
+  private void drainTo(String dest) {
+    if (detector.isSuspected(dest)) {
+      return;
+    }
+    ArrayList<CoordinatorMsg> to_send = new ArrayList<>();
+    ArrayList<CoordinatorMsg> resent = new ArrayList<>();
+    queueTo(dest).drain(to_send, resent);
+    for (CoordinatorMsg msg : resent) {
+      System.out.println("Server's txn=" + msg.txn_id + " to Node " + dest
+          + " in Phase II has expired, RESEND");
+    }
+    to_send.addAll(resent);
+    sendTogether(dest, TxnPhase.PHASE_II, to_send);
+  }
+
+  private static long streamKey(int txn_id, int node) {
+    return ((long) txn_id << 32) | node;
+  }
+
+  /* stop monitoring Phase I chunks of this txn to dest that start below the given offset */
+  private void untimeChunks(int txn_id, String dest, int below_offset) {
+    ArrayList<OutboundMsg> useless = new ArrayList<>();
+    synchronized (outboundMsgs) {
+      for (OutboundMsg msg : outboundMsgs) {
+        CoordinatorMsg inner_msg = msg.msg;
+        if (inner_msg.txn_id == txn_id && inner_msg.phase == TxnPhase.PHASE_I
+            && msg.dest.equals(dest) && inner_msg.offset < below_offset) {
+          useless.add(msg);
+        }
+      }
+      outboundMsgs.removeAll(useless);
+    }
+  }
+
+  /* offer the image by its hash first, participant only asks for bytes on a cache miss */
+  private void probeImageStream(ImageStream stream) {
+    CoordinatorMsg msg = stream.probe();
+    timeMsg(msg, stream.dest); // Under Timeout monitor
+    synchronized (pendingProposals) {
+      ArrayList<CoordinatorMsg> pending = pendingProposals.get(stream.dest);
+      if (pending == null) {
+        // first one to this node opens the linger window
+        pending = new ArrayList<>();
+        pendingProposals.put(stream.dest, pending);
+        batcher.schedule(() -> flushProposals(stream.dest), LINGER, TimeUnit.MILLISECONDS);
+      }
+      pending.add(msg);
+    }
+  }
+
+  /* linger window is over, send whatever proposals piled up for this node in one go */
+  private void flushProposals(String dest) {
+    ArrayList<CoordinatorMsg> pending;
+    synchronized (pendingProposals) {
+      pending = pendingProposals.remove(dest);
+    }
+    ArrayList<CoordinatorMsg> live = new ArrayList<>();
+    for (CoordinatorMsg msg : pending) {
+      // txn might have been decided while lingering
+      if (log.retrieveRecord(msg.txn_id).status == TxnMasterRecord.Status.PREPARE) {
+        live.add(msg);
+      }
+    }
+    sendTogether(dest, TxnPhase.PHASE_I, live);
+  }
+
+  /* send chunks until the window is full, at_least_one for the very first or a resumed chunk */
+  private void pumpImageStream(ImageStream stream, boolean at_least_one) {
+    for (CoordinatorMsg msg : stream.pump(at_least_one)) {
+      msg.sendMyselfTo(PL, stream.dest);
+      timeMsg(msg, stream.dest); // Under Timeout monitor
+    }
+  }
+
+  /* a stalled stream starts over from what the participant has acknowledged */
+  private void resumeImageStream(ImageStream stream) {
+    untimeChunks(stream.txn_id, stream.dest, Integer.MAX_VALUE);
+    if (stream.resume()) {
+      probeImageStream(stream);
+    } else {
+      pumpImageStream(stream, true);
+    }
+  }
+
+  /*
+    Ping the quiet participants, and abort every txn still waiting for the vote of
+    one that has just been suspected, instead of waiting for each of its proposals to expire
+   */
+  private void inspectLiveness() {
+    // only a participant we are streaming to or awaiting an ACK from needs watching
+    HashSet<String> busy = new HashSet<>();
+    for (ImageStream stream : imageStreams.values()) {
+      busy.add(stream.dest);
+    }
+    for (Map.Entry<String, SendQueue> entry : sendQueues.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        busy.add(entry.getKey());
+      }
+    }
+    ArrayList<String> to_ping = new ArrayList<>();
+    ArrayList<String> newly_suspected = detector.inspect(busy, to_ping);
+    for (String node : to_ping) {
+      CoordinatorMsg.GenerateHeartbeatMsg().sendMyselfTo(PL, node);
+    }
+    for (String node : newly_suspected) {
+      System.out.println("Server suspects Node " + node + " is down");
+      for (ImageStream stream : imageStreams.values()) {
+        // only matters if its vote is still missing
+        TxnMasterRecord record = log.retrieveRecord(stream.txn_id);
+        if (stream.dest.equals(node) && record.status == TxnMasterRecord.Status.PREPARE
+            && record.outstanding_participants.get(log.nodeId(node))) {
+          abortTxn(record);
+        }
+      }
+    }
+  }
+
+  /* a suspected participant is back, hand it the decisions held back meanwhile right away */
+  private void flushBacklog(String node) {
+    System.out.println("Server hears from Node " + node + " again, flush its backlog");
+    // whatever was sent before it went silent is presumably lost
+    queueTo(node).rewind();
+    drainTo(node);
+  }
+
+  /* abort a txn still in Phase I and move on to distribute the decision */
+  private void abortTxn(TxnMasterRecord record) {
+    System.out.println("Server Aborts txn " + record.id);
+    record.decision = TxnDecision.ABORT;
+    record.status = TxnMasterRecord.Status.DECISION;
+    record.resetOutstanding();
+    flushLog(); // FLUSH LOG
+    resumeTxnPhaseII(record);
   }
 
   /*
@@ -70,11 +266,15 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     if a message is in Phase I prepare and has not received feedback
     Coordinator think it's an implicit Denial and immediately abort
 
-    if a message is in Phase II requiring an ACK from participant
-    it must be resent until ACKed
+    Phase II decisions requiring an ACK from participant
+    are resent by the queue of their destination until ACKed
+
+    Commits held back for their sources are not held forever either
    */
-  @SuppressWarnings("unchecked")
   public void inspectTimeout() {
+    inspectLiveness();
+    expireHeld();
+
     ArrayList<OutboundMsg> expired_msgs = new ArrayList<>();
     synchronized (outboundMsgs) {
       // prune the timing queue
@@ -87,26 +287,41 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     }
 
     // deal with expired msgs
+    HashSet<ImageStream> resumed = new HashSet<>();
     for (OutboundMsg msg : expired_msgs) {
       TxnMasterRecord record = log.retrieveRecord(msg.msg.txn_id);
       if (msg.msg.phase == TxnPhase.PHASE_I && record.status == TxnMasterRecord.Status.PREPARE) {
+        int node = log.nodeId(msg.dest);
+        if (!record.outstanding_participants.get(node)) {
+          // this participant has voted already
+          continue;
+        }
+        ImageStream stream = imageStreams.get(streamKey(record.id, node));
+        if (stream != null && (msg.msg.offset < stream.acked || resumed.contains(stream))) {
+          // chunk acked in the meantime, or this stream has been resumed during this round
+          continue;
+        }
+        if (stream != null && stream.resends < ImageStream.CHUNK_RETRIES) {
+          System.out.println("Server's txn=" + msg.msg.txn_id + " to Node " + msg.dest
+              + " in Phase I has stalled, RESUME from offset " + stream.acked);
+          resumed.add(stream);
+          resumeImageStream(stream);
+          continue;
+        }
         // deemed as implicit DENIAL
         System.out.println("Server's txn=" + msg.msg.txn_id + " to Node " + msg.dest
             + " in Phase I has expired, deemed as DENIAL");
         record.decision = TxnDecision.ABORT;
         record.status = TxnMasterRecord.Status.DECISION;
-        record.outstanding_participants = (HashSet<String>) record.participants.clone();
+        record.resetOutstanding();
         flushLog(); // FLUSH LOG
         resumeTxnPhaseII(record);
       }
+    }
 
-      if (msg.msg.phase == TxnPhase.PHASE_II && record.status == TxnMasterRecord.Status.DECISION) {
-        // must continue resending until ACKed
-        System.out.println("Server's txn=" + msg.msg.txn_id + " to Node " + msg.dest
-            + " in Phase II has expired, RESEND");
-        msg.msg.sendMyselfTo(PL, msg.dest);
-        timeMsg(msg.msg, msg.dest);
-      }
+    // must continue resending until ACKed
+    for (String dest : sendQueues.keySet()) {
+      drainTo(dest);
     }
   }
 
@@ -138,28 +353,88 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     return disk_log;
   }
 
+  /* end held commits right away, no participant has heard about them */
+  private void failHeld(ArrayList<TxnMasterRecord> to_fail, String reason) {
+    for (TxnMasterRecord record : to_fail) {
+      System.out.println("Server fails held txn " + record.id + ", " + reason);
+      record.decision = TxnDecision.ABORT;
+      record.status = TxnMasterRecord.Status.END;
+    }
+    if (!to_fail.isEmpty()) {
+      flushLog(); // FLUSH LOG
+    }
+  }
+
+  /*
+    An aborted txn still waiting on a participant deemed down keeps its sources claimed
+    until that participant is back, which may be never
+   */
+  private boolean isStalled(TxnMasterRecord record) {
+    if (record.decision != TxnDecision.ABORT || record.status != TxnMasterRecord.Status.DECISION) {
+      return false;
+    }
+    BitSet outstanding = record.outstanding_participants;
+    for (int node = outstanding.nextSetBit(0); node >= 0; node = outstanding.nextSetBit(node + 1)) {
+      if (detector.isSuspected(log.nodeName(node))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* held commits waiting too long, or on a stalled txn, would only hang, fail them */
+  private void expireHeld() {
+    ArrayList<TxnMasterRecord> to_fail = new ArrayList<>();
+    scheduler.expire(MAX_HOLD, this::isStalled, to_fail);
+    failHeld(to_fail, "its sources are not freed in time");
+  }
+
+  /* start the held commits whose sources are free now, fail those whose sources got consumed */
+  private void reschedule() {
+    ArrayList<TxnMasterRecord> to_run = new ArrayList<>();
+    ArrayList<TxnMasterRecord> to_fail = new ArrayList<>();
+    scheduler.reschedule(to_run, to_fail);
+    failHeld(to_fail, "its sources are committed away");
+    for (TxnMasterRecord record : to_run) {
+      System.out.println("Server releases held txn " + record.id);
+      resumeTxnPhaseI(record);
+    }
+  }
+
   /* Continue Phase I of a txn */
   private void resumeTxnPhaseI(TxnMasterRecord record) {
     assert (record.status == TxnMasterRecord.Status.PREPARE);
-    ConcurrentHashMap<String, ArrayList<String>> distributed_sources = new ConcurrentHashMap<>();
-    /* split the sources into mapping based by per destination UserNode */
-    for (String source_file : record.sources) {
-      String[] source_and_file = source_file.split(SEP);
-      String participant = source_and_file[PARTICIPANT_IDX];
-      String file = source_and_file[FILENAME_IDX];
-      if (!distributed_sources.containsKey(participant)) {
-        distributed_sources.put(participant, new ArrayList<>());
+    for (int node : record.participant_nodes) {
+      if (detector.isSuspected(log.nodeName(node))) {
+        // no point proposing, the vote of a participant deemed down can only time out
+        abortTxn(record);
+        return;
       }
-      distributed_sources.get(participant).add(file);
     }
-    /* send outstanding messages */
-    for (String outstanding_participant : record.outstanding_participants) {
-      ArrayList<String> single_sources = distributed_sources.get(outstanding_participant);
-      String[] outstanding_sources = single_sources.toArray(new String[0]);
-      CoordinatorMsg msg = CoordinatorMsg.GeneratePhaseIMsg(
-          record.id, record.filename, record.img, outstanding_sources);
-      msg.sendMyselfTo(PL, outstanding_participant);
-      timeMsg(msg, outstanding_participant); // Under Timeout monitor
+    /* send outstanding messages, sources are already grouped per destination UserNode */
+    for (int i = 0; i < record.participant_nodes.length; i++) {
+      int node = record.participant_nodes[i];
+      if (!record.outstanding_participants.get(node)) {
+        continue;
+      }
+      String outstanding_participant = log.nodeName(node);
+      // a relay also learns whom to propose to on our behalf
+      ArrayList<Integer> group = record.relayedBy(i);
+      String[] relay_to = null;
+      String[][] relay_files = null;
+      if (!group.isEmpty()) {
+        relay_to = new String[group.size()];
+        relay_files = new String[group.size()][];
+        for (int k = 0; k < group.size(); k++) {
+          relay_to[k] = log.nodeName(record.participant_nodes[group.get(k)]);
+          relay_files[k] = record.participant_files[group.get(k)];
+        }
+      }
+      ImageStream stream = new ImageStream(record.id, record.filename, record.img,
+          record.img_hash, outstanding_participant, record.participant_files[i], relay_to,
+          relay_files);
+      imageStreams.put(streamKey(record.id, node), stream);
+      probeImageStream(stream);
     }
   }
 
@@ -179,15 +454,17 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
       }
       outboundMsgs.removeAll(useless);
     }
+    for (int node : record.participant_nodes) {
+      imageStreams.remove(streamKey(record.id, node));
+    }
 
     CoordinatorMsg msg = CoordinatorMsg.GeneratePhaseIIMsg(record.id, record.decision);
-    for (String destination : record.outstanding_participants) {
-      msg.sendMyselfTo(PL, destination);
-      timeMsg(msg, destination);
+    BitSet outstanding = record.outstanding_participants;
+    for (int node = outstanding.nextSetBit(0); node >= 0; node = outstanding.nextSetBit(node + 1)) {
+      sendDecision(msg, log.nodeName(node));
     }
   }
 
-  @SuppressWarnings("unchecked")
   private void dealVote(String from, ParticipantMsg msg) {
     assert (msg.phase == TxnPhase.PHASE_I);
     TxnMasterRecord record = log.retrieveRecord(msg.txn_id);
@@ -195,32 +472,39 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
       return;
     }
     if (record.status == TxnMasterRecord.Status.DECISION) {
-      // already made a decision, inform
-      CoordinatorMsg decision_msg = CoordinatorMsg.GeneratePhaseIIMsg(record.id, record.decision);
-      decision_msg.sendMyselfTo(PL, from);
-      timeMsg(decision_msg, from);
+      // already made a decision, inform unless it has ACKed, or it would be queued again for good
+      int node = log.nodeId(from);
+      if (node >= 0 && record.outstanding_participants.get(node)) {
+        CoordinatorMsg decision_msg = CoordinatorMsg.GeneratePhaseIIMsg(record.id, record.decision);
+        sendDecision(decision_msg, from);
+      }
+      return;
+    }
+
+    if (msg.vote == TxnVote.NOT_VOTE) {
+      // still streaming the image, not a vote yet
+      dealChunkAck(from, record, msg);
       return;
     }
 
     if (msg.vote == TxnVote.DENIAL) {
       // this txn is aborted for sure, move to Phase II
-      System.out.println("Server Aborts txn " + record.id);
-      record.decision = TxnDecision.ABORT;
-      record.status = TxnMasterRecord.Status.DECISION;
-      record.outstanding_participants = (HashSet<String>) record.participants.clone();
-      flushLog(); // FLUSH LOG
-      resumeTxnPhaseII(record);
+      abortTxn(record);
       return;
     }
 
-    record.outstanding_participants.remove(from);
+    int node = log.nodeId(from);
+    if (node < 0) {
+      return;
+    }
+    record.outstanding_participants.clear(node);
     if (record.outstanding_participants.isEmpty()) {
       // every participant has voted
       if (record.decision == TxnDecision.UNDECIDED) {
         record.decision = TxnDecision.COMMIT;
       }
       record.status = TxnMasterRecord.Status.DECISION;
-      record.outstanding_participants = (HashSet<String>) record.participants.clone();
+      record.resetOutstanding();
 
       // commit point to outside world
       // might have a race after flushLog and before outwrite the img to disk, IGNORE for now
@@ -239,18 +523,51 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 
       // move to Phase II to distribute decision and collect ACK
       resumeTxnPhaseII(record);
+
+      if (record.decision == TxnDecision.COMMIT) {
+        // commits waiting on these sources can never succeed now
+        reschedule();
+      }
+    }
+  }
+
+  private void dealChunkAck(String from, TxnMasterRecord record, ParticipantMsg msg) {
+    int node = log.nodeId(from);
+    ImageStream stream = (node < 0) ? null : imageStreams.get(streamKey(record.id, node));
+    if (stream == null) {
+      return;
     }
+    boolean restart = stream.report(msg.next_offset, msg.epoch);
+    untimeChunks(record.id, from, restart ? Integer.MAX_VALUE : stream.acked);
+    pumpImageStream(stream, restart);
   }
 
   private void dealACK(String from, ParticipantMsg msg) {
     assert (msg.phase == TxnPhase.PHASE_II);
     TxnMasterRecord record = log.retrieveRecord(msg.txn_id);
     assert (record.status != TxnMasterRecord.Status.PREPARE);
+    // frees a slot for the next decision waiting to go there, even if the txn is over
+    queueTo(from).ack(record.id, TxnPhase.PHASE_II);
+    drainTo(from);
     if (record.status == TxnMasterRecord.Status.END) {
       // no more need for ACKs
       return;
     }
-    record.outstanding_participants.remove(from);
+    int node = log.nodeId(from);
+    if (node < 0) {
+      return;
+    }
+    record.outstanding_participants.clear(node);
+    // participant has applied the decision and unlocked its sources, so has its group if a relay
+    for (int i = 0; i < record.participant_nodes.length; i++) {
+      if (record.participant_nodes[i] == node) {
+        scheduler.release(record, from);
+        for (int j : record.relayedBy(i)) {
+          scheduler.release(record, log.nodeName(record.participant_nodes[j]));
+        }
+      }
+    }
+    reschedule();
     // flushLog(); // FLUSH LOG
     if (record.outstanding_participants.isEmpty()) {
       // all ACKs collected, this txn is completed
@@ -271,7 +588,35 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     }
   }
 
-  @SuppressWarnings("unchecked")
+  /* a rebooted participant asks about its in-doubt txns, queue all known decisions to it at once */
+  private void dealInquiry(String from, ParticipantMsg msg) {
+    SendQueue queue = queueTo(from);
+    for (int txn_id : msg.inquiry) {
+      TxnMasterRecord record = log.retrieveRecord(txn_id);
+      if (record != null && record.status != TxnMasterRecord.Status.PREPARE) {
+        // a decision already queued or in flight to it is not duplicated
+        queue.offer(CoordinatorMsg.GeneratePhaseIIMsg(record.id, record.decision));
+      }
+      // still in PREPARE, the decision will reach it through the normal Phase II
+    }
+    detector.watch(from);
+    // it has rebooted, whatever was on its way to it before is lost
+    flushBacklog(from);
+  }
+
+  /* sources of participants yet to ACK, or whose relay is yet to ACK, are still locked over there */
+  private void reclaimSources(TxnMasterRecord record) {
+    for (int i = 0; i < record.participant_nodes.length; i++) {
+      int answers_to = (record.relay[i] < 0) ? i : record.relay[i];
+      if (record.outstanding_participants.get(record.participant_nodes[answers_to])) {
+        String participant = log.nodeName(record.participant_nodes[i]);
+        for (String file : record.participant_files[i]) {
+          scheduler.claim(record, participant + TxnMasterRecord.SEP + file);
+        }
+      }
+    }
+  }
+
   public void recover() {
     if (new File(LOG_NAME).exists()) {
       System.out.println("Server comes online with DISK log");
@@ -282,11 +627,13 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
           System.out.println("Serer Abort ongoing txn " + record.id);
           record.decision = TxnDecision.ABORT;
           record.status = TxnMasterRecord.Status.DECISION;
-          record.outstanding_participants = (HashSet<String>) record.participants.clone();
+          record.resetOutstanding();
           flushLog(); // FLUSH LOG
+          reclaimSources(record);
           resumeTxnPhaseII(record);
         } else if (record.status == TxnMasterRecord.Status.DECISION) {
           System.out.println("Serer continue committed txn " + record.id);
+          reclaimSources(record);
           resumeTxnPhaseII(record);
         }
       }
@@ -300,6 +647,12 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 
   public Server() {
     this.outboundMsgs = new ConcurrentLinkedDeque<>();
+    this.sendQueues = new ConcurrentHashMap<>();
+    this.imageStreams = new ConcurrentHashMap<>();
+    this.pendingProposals = new HashMap<>();
+    this.batcher = Executors.newSingleThreadScheduledExecutor();
+    this.scheduler = new CommitScheduler();
+    this.detector = new FailureDetector(ImageStream.INTERVAL, ImageStream.TIMEOUT);
   }
 
   @Override
@@ -310,6 +663,30 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     ParticipantMsg participantMsg = ParticipantMsg.deserialize(msg);
     System.out.println(
         "Server Got message from " + msg.addr + " about Msg: " + participantMsg.toString());
+    // any message at all is a sign of life, an inquiry flushes the backlog by itself
+    if (detector.heard(from) && participantMsg.inquiry == null) {
+      flushBacklog(from);
+    }
+    if (participantMsg.phase == TxnPhase.HEARTBEAT) {
+      return true;
+    }
+    if (participantMsg.batch != null) {
+      // replies to a batch, each one is handled as if it came alone
+      for (ParticipantMsg reply : participantMsg.batch) {
+        if (reply.phase == TxnPhase.PHASE_I) {
+          dealVote(from, reply);
+        } else {
+          dealACK(from, reply);
+        }
+      }
+      return true;
+    }
+
+    if (participantMsg.inquiry != null) {
+      dealInquiry(from, participantMsg);
+      return true;
+    }
+
     if (participantMsg.phase == TxnPhase.PHASE_I) {
       dealVote(from, participantMsg);
     }
@@ -325,8 +702,19 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
     System.out.println(
         "Server: Got request to commit " + filename + " with sources " + Arrays.toString(sources));
     TxnMasterRecord new_record = log.createRecord(filename, img, sources);
+    CommitScheduler.Verdict verdict = scheduler.admit(new_record);
+    if (verdict == CommitScheduler.Verdict.FAIL) {
+      // no participant has to hear about it
+      System.out.println("Server fails txn " + new_record.id + ", its sources are committed away");
+      new_record.decision = TxnDecision.ABORT;
+      new_record.status = TxnMasterRecord.Status.END;
+    }
     flushLog(); // FLUSH LOG
-    resumeTxnPhaseI(new_record);
+    if (verdict == CommitScheduler.Verdict.RUN) {
+      resumeTxnPhaseI(new_record);
+    } else if (verdict == CommitScheduler.Verdict.HOLD) {
+      System.out.println("Server holds txn " + new_record.id + " until its sources are free");
+    }
   }
 
   public static void main(String args[]) throws Exception {
@@ -338,7 +726,7 @@ public class Server implements ProjectLib.CommitServing, ProjectLib.MessageHandl
 
     // main loop for inspecting timeout messages
     while (true) {
-      Thread.sleep(INTERVAL);
+      Thread.sleep(ImageStream.INTERVAL);
       srv.inspectTimeout();
     }
   }
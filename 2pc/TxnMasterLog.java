@@ -11,16 +11,48 @@
  */
 
 import java.io.Serializable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TxnMasterLog implements Serializable {
   public AtomicInteger highest_txn_id;
-  public ConcurrentHashMap<Integer, TxnMasterRecord> all_txns;
+  public TxnTable<TxnMasterRecord> all_txns;
+  /* UserNode names interned to small integer ids, index is the id */
+  private final ArrayList<String> node_names;
+  private final HashMap<String, Integer> node_ids;
 
   public TxnMasterLog() {
     highest_txn_id = new AtomicInteger(0);
-    all_txns = new ConcurrentHashMap<>();
+    all_txns = new TxnTable<>();
+    node_names = new ArrayList<>();
+    node_ids = new HashMap<>();
+  }
+
+  /* assign a stable small id to a UserNode name, done once when a commit is admitted */
+  public synchronized int internNode(String node) {
+    Integer id = node_ids.get(node);
+    if (id == null) {
+      id = node_names.size();
+      node_names.add(node);
+      node_ids.put(node, id);
+    }
+    return id;
+  }
+
+  /* -1 if this node never took part in any txn */
+  public synchronized int nodeId(String node) {
+    Integer id = node_ids.get(node);
+    return (id == null) ? -1 : id;
+  }
+
+  /* every id handed out so far is below this */
+  public synchronized int nodeCount() {
+    return node_names.size();
+  }
+
+  public synchronized String nodeName(int id) {
+    return node_names.get(id);
   }
 
   public TxnMasterRecord retrieveRecord(int txn_id) {
@@ -29,7 +61,7 @@ public class TxnMasterLog implements Serializable {
 
   public TxnMasterRecord createRecord(String filename, byte[] img, String[] sources) {
     int txn_id = highest_txn_id.getAndAdd(1);
-    TxnMasterRecord new_record = new TxnMasterRecord(txn_id, filename, img, sources);
+    TxnMasterRecord new_record = new TxnMasterRecord(txn_id, filename, img, sources, this);
     all_txns.put(txn_id, new_record);
     return new_record;
   }
@@ -9,10 +9,16 @@
  * The Transaction Record for a single transaction
  * it records the current status of the txn and remaining participants
  * should be stored in persistent storage in fear of failure
+ *
+ * A txn with many participants is tree-structured: they are split into groups
+ * of TREE_FANOUT, and the first node of each group acts as a relay, which
+ * proposes to the rest of the group and combines their votes and ACKs into one reply
  */
 
 import java.io.Serializable;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class TxnMasterRecord implements Serializable {
   enum Status implements Serializable { PREPARE, DECISION, END }
@@ -21,31 +27,87 @@ public class TxnMasterRecord implements Serializable {
   public final int id;
   public final String filename;
   public final byte[] img;
+  /* content address of img, see ImageCache */
+  public final String img_hash;
   public final String[] sources;
-  public final HashSet<String> participants;
-  public HashSet<String> outstanding_participants;
+  /* sources grouped once per participant: participant_nodes[i] owns participant_files[i] */
+  public final int[] participant_nodes;
+  public final String[][] participant_files;
+  /* participant_nodes[i] answers to participant_nodes[relay[i]], or to Coordinator if -1 */
+  public final int[] relay;
+  /* bitsets over interned node ids, see TxnMasterLog.internNode */
+  /* only participants that answer to Coordinator directly */
+  public final BitSet participants;
+  public final BitSet outstanding_participants;
   public Status status;
   public TxnDecision decision;
 
-  private static final String SEP = ":";
-  private static final int PARTICIPANT_IDX = 0;
-  private static final int FILENAME_IDX = 1;
+  public static final char SEP = ':';
+
+  /* txns with at least this many participants are tree-structured */
+  public static final int TREE_THRESHOLD = 8;
+  public static final int TREE_FANOUT = 4;
 
-  @SuppressWarnings("unchecked")
-  public TxnMasterRecord(int id, String filename, byte[] img, String[] sources) {
+  public TxnMasterRecord(int id, String filename, byte[] img, String[] sources, TxnMasterLog log) {
     this.id = id;
     this.filename = filename;
     this.img = img;
+    this.img_hash = ImageCache.hashOf(img);
     this.sources = sources;
-    this.participants = new HashSet<>();
-    /* parse out all participant */
-    for (String node_file : sources) {
-      String[] node_and_file = node_file.split(SEP);
-      String participant = node_and_file[PARTICIPANT_IDX];
-      this.participants.add(participant);
+    this.participants = new BitSet();
+    /* intern the node of every source first, then group their files per participant */
+    int[] source_nodes = new int[sources.length];
+    for (int s = 0; s < sources.length; s++) {
+      source_nodes[s] = log.internNode(sources[s].substring(0, sources[s].indexOf(SEP)));
+    }
+    /* interned id -> its index among the participants, -1 if not one */
+    int[] position = new int[log.nodeCount()];
+    Arrays.fill(position, -1);
+    int[] nodes = new int[sources.length];
+    ArrayList<ArrayList<String>> files = new ArrayList<>();
+    int count = 0;
+    for (int s = 0; s < sources.length; s++) {
+      int node = source_nodes[s];
+      if (position[node] < 0) {
+        this.participants.set(node);
+        position[node] = count;
+        nodes[count++] = node;
+        files.add(new ArrayList<>());
+      }
+      files.get(position[node]).add(sources[s].substring(sources[s].indexOf(SEP) + 1));
     }
-    this.outstanding_participants = (HashSet<String>) this.participants.clone();
+    this.participant_nodes = Arrays.copyOf(nodes, count);
+    this.participant_files = new String[count][];
+    this.relay = new int[count];
+    boolean tree = count >= TREE_THRESHOLD;
+    for (int i = 0; i < count; i++) {
+      this.participant_files[i] = files.get(i).toArray(new String[0]);
+      this.relay[i] = (tree && i % TREE_FANOUT != 0) ? i - i % TREE_FANOUT : -1;
+      if (this.relay[i] >= 0) {
+        // the relay answers for it
+        this.participants.clear(nodes[i]);
+      }
+    }
+    this.outstanding_participants = new BitSet();
+    resetOutstanding();
     this.status = Status.PREPARE;
     this.decision = TxnDecision.UNDECIDED;
   }
+
+  /* indices of the participants that participant_nodes[i] relays for */
+  public ArrayList<Integer> relayedBy(int i) {
+    ArrayList<Integer> group = new ArrayList<>();
+    for (int j = 0; j < relay.length; j++) {
+      if (relay[j] == i) {
+        group.add(j);
+      }
+    }
+    return group;
+  }
+
+  /* every participant is owed a reply again, e.g. upon entering a new phase */
+  public void resetOutstanding() {
+    outstanding_participants.clear();
+    outstanding_participants.or(participants);
+  }
 }
@@ -4,9 +4,9 @@
  * Date: April 06, 2023
  *
  * This is the Enum class for a transaction's phase information
- * either phase1 or phase2
+ * either phase1 or phase2, or a liveness heartbeat outside of any txn
  */
 
 import java.io.Serializable;
 
-public enum TxnPhase implements Serializable { PHASE_I, PHASE_II }
+public enum TxnPhase implements Serializable { PHASE_I, PHASE_II, HEARTBEAT }
@@ -0,0 +1,52 @@
+/**
+ * TxnRelayLog.java
+ * author: Yukun Jiang
+ * Date: April 16, 2023
+ *
+ * This is the implementation for the TxnRelayLog instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * The collection of TxnRelayRecord kept by a UserNode that relays for others,
+ * i.e. its log as an intermediate participant. A record is dropped once
+ * its whole group has ACKed the decision, so the log only holds the txns
+ * in flight and stays small, hence unlike TxnSlaveLog it is serialized as a whole
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+public class TxnRelayLog implements Serializable {
+  public TxnTable<TxnRelayRecord> all_txns;
+
+  public TxnRelayLog() {
+    all_txns = new TxnTable<>();
+  }
+
+  public TxnRelayRecord retrieveRecord(int txn_id) {
+    return all_txns.get(txn_id);
+  }
+
+  public TxnRelayRecord createRecord(int txn_id, String filename, byte[] img, String img_hash,
+      String[] children, String[][] children_files) {
+    TxnRelayRecord new_record =
+        new TxnRelayRecord(txn_id, filename, img, img_hash, children, children_files);
+    all_txns.put(txn_id, new_record);
+    return new_record;
+  }
+
+  /* the group is done with this txn, a late resend is answered like a plain participant */
+  public void removeRecord(int txn_id) {
+    all_txns.remove(txn_id);
+  }
+
+  /* records still waiting on some children */
+  public ArrayList<TxnRelayRecord> pendingRecords() {
+    ArrayList<TxnRelayRecord> pending = new ArrayList<>();
+    for (TxnRelayRecord record : all_txns.values()) {
+      if (!record.outstanding_children.isEmpty()) {
+        pending.add(record);
+      }
+    }
+    return pending;
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * TxnRelayRecord.java
+ * author: Yukun Jiang
+ * Date: April 16, 2023
+ *
+ * This is the implementation for the TxnRelayRecord instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * The Transaction Record of a UserNode relaying a tree-structured txn
+ * it records the nodes relayed for, the combined vote of the group
+ * and which of them still owe a reply in the current phase
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+public class TxnRelayRecord implements Serializable {
+  public final int txn_id;
+  public final String filename;
+  public final String img_hash;
+  /* only needed to propose, not worth persisting, a relay that crashes meanwhile denies */
+  public transient byte[] img;
+  /* children[k] is asked for children_files[k] */
+  public final String[] children;
+  public final String[][] children_files;
+  /* combined vote of the whole group, NOT_VOTE while collecting */
+  public TxnVote vote;
+  public TxnDecision decision;
+  public final HashSet<String> outstanding_children;
+  /* Phase I streams of img to the children, by child */
+  public transient HashMap<String, ImageStream> streams;
+  /* when the outstanding children were last sent the decision */
+  public transient long sent_time;
+
+  public TxnRelayRecord(int txn_id, String filename, byte[] img, String img_hash,
+      String[] children, String[][] children_files) {
+    this.txn_id = txn_id;
+    this.filename = filename;
+    this.img = img;
+    this.img_hash = img_hash;
+    this.children = children;
+    this.children_files = children_files;
+    this.vote = TxnVote.NOT_VOTE;
+    this.decision = TxnDecision.UNDECIDED;
+    this.outstanding_children = new HashSet<>();
+    resetOutstanding();
+  }
+
+  /* every child is owed a reply again, e.g. upon entering a new phase */
+  public void resetOutstanding() {
+    outstanding_children.clear();
+    outstanding_children.addAll(Arrays.asList(children));
+  }
+}
@@ -8,28 +8,197 @@
  *
  * The collection of TxnSlaveRecord used by the participant nodes
  * the log should be stored to persistent storage in fear of faiure
+ *
+ * Persistence is a pair of memory-mapped slot files:
+ *   txn slots:  [txn_id:int][used:byte][vote:byte][decision:byte][pad]
+ *   lock slots: [name_len:short][name:utf8][locking_txn:int]
+ * a txn takes the next free txn slot, a resource takes a lock slot the first
+ * time it is seen, and every state change rewrites only that one slot
  */
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class TxnSlaveLog implements Serializable {
-  public ConcurrentHashMap<Integer, TxnSlaveRecord> all_txns;
-  public ConcurrentHashMap<String, Integer> locked_resources;
+public class TxnSlaveLog {
+  private static final String TXN_SUFFIX = "_TXNS";
+  private static final String LOCK_SUFFIX = "_LOCKS";
+
+  private static final int TXN_SLOT_SIZE = 16;
+  private static final int TXN_ID_OFFSET = 0;
+  private static final int USED_OFFSET = 4;
+  private static final int VOTE_OFFSET = 5;
+  private static final int DECISION_OFFSET = 6;
+
+  private static final int LOCK_SLOT_SIZE = 256;
+  private static final int NAME_LEN_OFFSET = 0;
+  private static final int NAME_OFFSET = 2;
+  private static final int LOCKER_OFFSET = LOCK_SLOT_SIZE - 4;
+  private static final int MAX_NAME_LEN = LOCKER_OFFSET - NAME_OFFSET;
+
+  private static final int INITIAL_SLOTS = 1024;
+  private static final byte USED = 1;
+  private static final int FREE = -1;
+
+  public final TxnTable<TxnSlaveRecord> all_txns;
+  /* in-memory view of the lock slots, resource -> locking txn id */
+  private final ConcurrentHashMap<String, Integer> locked_resources;
+  /* resource -> its lock slot */
+  private final HashMap<String, Integer> resource_slots;
+
+  private final MappedSlotFile txn_slots;
+  private final MappedSlotFile lock_slots;
+  private int next_txn_slot;
+  private int next_lock_slot;
+
+  /* whether there was a log on disk to recover from */
+  public final boolean from_disk;
 
-  public TxnSlaveLog() {
-    all_txns = new ConcurrentHashMap<>();
+  public TxnSlaveLog(String log_name) throws IOException {
+    from_disk = new File(log_name + TXN_SUFFIX).exists();
+    all_txns = new TxnTable<>();
     locked_resources = new ConcurrentHashMap<>();
+    resource_slots = new HashMap<>();
+    txn_slots = new MappedSlotFile(log_name + TXN_SUFFIX, TXN_SLOT_SIZE, INITIAL_SLOTS);
+    lock_slots = new MappedSlotFile(log_name + LOCK_SUFFIX, LOCK_SLOT_SIZE, INITIAL_SLOTS);
+    loadSlots();
   }
 
-  public TxnSlaveRecord retrieveRecord(int txn_id) {
+  /* resource names must fit in a single lock slot */
+  public static boolean canTrack(String resource) {
+    return resource.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LEN;
+  }
+
+  public synchronized TxnSlaveRecord retrieveRecord(int txn_id) {
     return all_txns.get(txn_id);
   }
 
-  public TxnSlaveRecord createRecord(
-      int txn_id, String filename, String[] resources_requested, TxnVote vote) {
-    TxnSlaveRecord new_record = new TxnSlaveRecord(txn_id, filename, resources_requested, vote);
+  public synchronized TxnSlaveRecord createRecord(int txn_id, TxnVote vote) throws IOException {
+    TxnSlaveRecord new_record = new TxnSlaveRecord(txn_id, vote, next_txn_slot++);
+    writeTxnSlot(new_record);
     all_txns.put(txn_id, new_record);
     return new_record;
   }
+
+  public synchronized void recordDecision(TxnSlaveRecord record, TxnDecision decision)
+      throws IOException {
+    record.decision = decision;
+    writeTxnSlot(record);
+  }
+
+  public boolean isLocked(String resource) {
+    return locked_resources.containsKey(resource);
+  }
+
+  public synchronized void lockResource(String resource, int txn_id) throws IOException {
+    Integer slot = resource_slots.get(resource);
+    if (slot == null) {
+      slot = next_lock_slot++;
+      resource_slots.put(resource, slot);
+      byte[] name = resource.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer buf = lock_slots.slot(slot);
+      buf.position(NAME_OFFSET);
+      buf.put(name);
+      buf.putInt(LOCKER_OFFSET, txn_id);
+      // name length last so a half-written slot is never picked up on recovery
+      buf.putShort(NAME_LEN_OFFSET, (short) name.length);
+    } else {
+      lock_slots.slot(slot).putInt(LOCKER_OFFSET, txn_id);
+    }
+    locked_resources.put(resource, txn_id);
+  }
+
+  public synchronized void releaseResource(String resource) throws IOException {
+    Integer slot = resource_slots.get(resource);
+    if (slot != null) {
+      lock_slots.slot(slot).putInt(LOCKER_OFFSET, FREE);
+    }
+    locked_resources.remove(resource);
+  }
+
+  /* txns this node approved but has not heard the outcome of, its resources stay locked */
+  public synchronized int[] inDoubtTxns() {
+    ArrayList<TxnSlaveRecord> in_doubt = new ArrayList<>();
+    for (TxnSlaveRecord record : all_txns.values()) {
+      if (record.vote == TxnVote.APPROVAL && record.decision == TxnDecision.UNDECIDED) {
+        in_doubt.add(record);
+      }
+    }
+    int[] txn_ids = new int[in_doubt.size()];
+    for (int i = 0; i < txn_ids.length; i++) {
+      txn_ids[i] = in_doubt.get(i).txn_id;
+    }
+    return txn_ids;
+  }
+
+  public ArrayList<String> resourcesLockedBy(int txn_id) {
+    ArrayList<String> resources = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : locked_resources.entrySet()) {
+      if (entry.getValue() == txn_id) {
+        resources.add(entry.getKey());
+      }
+    }
+    return resources;
+  }
+
+  /* write back every dirty slot, caller still fsync through PL */
+  public synchronized void force() {
+    txn_slots.force();
+    lock_slots.force();
+  }
+
+  private void writeTxnSlot(TxnSlaveRecord record) throws IOException {
+    ByteBuffer buf = txn_slots.slot(record.slot);
+    buf.putInt(TXN_ID_OFFSET, record.txn_id);
+    buf.put(VOTE_OFFSET, (byte) record.vote.ordinal());
+    buf.put(DECISION_OFFSET, (byte) record.decision.ordinal());
+    // mark used last so a half-written slot is never picked up on recovery
+    buf.put(USED_OFFSET, USED);
+  }
+
+  /* rebuild the in-memory view from the mapped slots */
+  private void loadSlots() throws IOException {
+    TxnVote[] votes = TxnVote.values();
+    TxnDecision[] decisions = TxnDecision.values();
+    next_txn_slot = 0;
+    while (next_txn_slot < txn_slots.capacity()) {
+      ByteBuffer buf = txn_slots.slot(next_txn_slot);
+      if (buf.get(USED_OFFSET) != USED) {
+        break;
+      }
+      TxnSlaveRecord record =
+          new TxnSlaveRecord(buf.getInt(TXN_ID_OFFSET), votes[buf.get(VOTE_OFFSET)], next_txn_slot);
+      record.decision = decisions[buf.get(DECISION_OFFSET)];
+      all_txns.put(record.txn_id, record);
+      next_txn_slot++;
+    }
+
+    next_lock_slot = 0;
+    while (next_lock_slot < lock_slots.capacity()) {
+      ByteBuffer buf = lock_slots.slot(next_lock_slot);
+      int name_len = buf.getShort(NAME_LEN_OFFSET);
+      if (name_len == 0) {
+        break;
+      }
+      byte[] name = new byte[name_len];
+      buf.position(NAME_OFFSET);
+      buf.get(name);
+      String resource = new String(name, StandardCharsets.UTF_8);
+      resource_slots.put(resource, next_lock_slot);
+      int locker = buf.getInt(LOCKER_OFFSET);
+      if (locker != FREE) {
+        if (all_txns.get(locker) == null) {
+          // crashed after locking but before the vote was on book, the vote never went out
+          buf.putInt(LOCKER_OFFSET, FREE);
+        } else {
+          locked_resources.put(resource, locker);
+        }
+      }
+      next_lock_slot++;
+    }
+  }
 }
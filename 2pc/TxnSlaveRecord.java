@@ -8,23 +8,20 @@
  *
  * The Transaction Record for a single transaction
  * it records the current status of the txn and votes
- * used by the UserNode as a participant
+ * used by the UserNode as a participant, persisted as one fixed-size slot
  */
 
-import java.io.Serializable;
-
-public class TxnSlaveRecord implements Serializable {
+public class TxnSlaveRecord {
   public final int txn_id;
-  public final String filename;
-  public final String[] resources_requested;
   public final TxnVote vote;
   public TxnDecision decision;
+  /* which slot of the TxnSlaveLog this record is persisted in */
+  public final int slot;
 
-  public TxnSlaveRecord(int txn_id, String filename, String[] resources_requested, TxnVote vote) {
+  public TxnSlaveRecord(int txn_id, TxnVote vote, int slot) {
     this.txn_id = txn_id;
-    this.filename = filename;
-    this.resources_requested = resources_requested;
     this.vote = vote;
     this.decision = TxnDecision.UNDECIDED;
+    this.slot = slot;
   }
 }
@@ -0,0 +1,288 @@
+/**
+ * TxnTable.java
+ * author: Yukun Jiang
+ * Date: April 10, 2023
+ *
+ * This is the implementation for the TxnTable instance
+ * in our Two Phase Commit distributed consensus protocol
+ *
+ * A thread-safe table keyed by primitive int transaction id
+ * Txn ids are handed out densely by the Coordinator, so most records
+ * live in a plain array window indexed by (txn_id - base)
+ * ids that fall too far outside the window go to a small open-addressing
+ * map of stragglers, so no Integer boxing or hash node per record
+ *
+ * The window grows while it stays dense enough, otherwise it slides up
+ * towards the highest id seen, e.g. on a participant that is only in
+ * some of the txns, and the records it leaves behind become stragglers
+ *
+ * hits inside the window are lock-free, everything else takes the table lock
+ */
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class TxnTable<V> implements Serializable {
+  /**
+   * The window over [base, base + slots.length)
+   * base and slots are swapped together, so a lock-free reader never pairs
+   * the base of one window with the slots of another
+   */
+  private static final class Window implements Serializable {
+    public final int base;
+    public final AtomicReferenceArray<Object> slots;
+
+    public Window(int base, AtomicReferenceArray<Object> slots) {
+      this.base = base;
+      this.slots = slots;
+    }
+
+    public boolean covers(int txn_id) {
+      return base != -1 && txn_id >= base && txn_id - base < slots.length();
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+  /* open-addressing map is resized beyond this fill ratio */
+  private static final float LOAD_FACTOR = 0.5f;
+  /* a window slot costs a reference, a straggler at least four words, so a window
+     a quarter full is still no bigger than the stragglers it would replace */
+  private static final int MAX_SPARSITY = 4;
+
+  private volatile Window window;
+  private int window_size;
+
+  /* open-addressing map for ids outside the window, null value means empty slot */
+  private int[] straggler_keys;
+  private Object[] straggler_vals;
+  private int straggler_size;
+  /* highest id ever put among the stragglers, only those above the window can be absorbed */
+  private int straggler_max;
+
+  public TxnTable() {
+    window = new Window(-1, new AtomicReferenceArray<>(INITIAL_CAPACITY));
+    straggler_keys = new int[INITIAL_CAPACITY];
+    straggler_vals = new Object[INITIAL_CAPACITY];
+    straggler_max = Integer.MIN_VALUE;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int txn_id) {
+    // fast path, no locking for a record already published into the window
+    Window w = window;
+    if (w.covers(txn_id)) {
+      Object v = w.slots.get(txn_id - w.base);
+      if (v != null) {
+        return (V) v;
+      }
+    }
+    return getLocked(txn_id);
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized V getLocked(int txn_id) {
+    if (window.covers(txn_id)) {
+      return (V) window.slots.get(txn_id - window.base);
+    }
+    int slot = findSlot(straggler_keys, straggler_vals, txn_id);
+    return (V) straggler_vals[slot];
+  }
+
+  public synchronized void put(int txn_id, V value) {
+    assert (value != null);
+    if (window.base == -1) {
+      // anchor the window at the first id ever seen
+      window = new Window(txn_id, window.slots);
+    }
+    if (!window.covers(txn_id) && txn_id >= window.base) {
+      if (worthGrowing(txn_id)) {
+        growWindow(txn_id);
+      } else {
+        slideWindow(txn_id);
+      }
+    }
+    if (window.covers(txn_id)) {
+      if (window.slots.getAndSet(txn_id - window.base, value) == null) {
+        window_size++;
+      }
+      return;
+    }
+    putStraggler(txn_id, value);
+  }
+
+  /* drop a record, return it or null if it was not on book */
+  @SuppressWarnings("unchecked")
+  public synchronized V remove(int txn_id) {
+    if (window.covers(txn_id)) {
+      Object v = window.slots.getAndSet(txn_id - window.base, null);
+      if (v != null) {
+        window_size--;
+      }
+      return (V) v;
+    }
+    int slot = findSlot(straggler_keys, straggler_vals, txn_id);
+    Object v = straggler_vals[slot];
+    if (v == null) {
+      return null;
+    }
+    straggler_vals[slot] = null;
+    straggler_size--;
+    // shift back the entries probed past the freed slot, so lookups still reach them
+    int mask = straggler_keys.length - 1;
+    int hole = slot;
+    for (int i = (slot + 1) & mask; straggler_vals[i] != null; i = (i + 1) & mask) {
+      int home = homeSlot(straggler_keys[i], mask);
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        straggler_keys[hole] = straggler_keys[i];
+        straggler_vals[hole] = straggler_vals[i];
+        straggler_vals[i] = null;
+        hole = i;
+      }
+    }
+    return (V) v;
+  }
+
+  public synchronized int size() {
+    return window_size + straggler_size;
+  }
+
+  /* snapshot of all the records on book, in no particular order */
+  @SuppressWarnings("unchecked")
+  public synchronized ArrayList<V> values() {
+    ArrayList<V> all = new ArrayList<>(size());
+    AtomicReferenceArray<Object> slots = window.slots;
+    for (int i = 0; i < slots.length(); i++) {
+      Object v = slots.get(i);
+      if (v != null) {
+        all.add((V) v);
+      }
+    }
+    for (Object v : straggler_vals) {
+      if (v != null) {
+        all.add((V) v);
+      }
+    }
+    return all;
+  }
+
+  /* only extend the window if it stays at least 1 / MAX_SPARSITY populated */
+  private boolean worthGrowing(int txn_id) {
+    return (long) txn_id - window.base
+        < (long) MAX_SPARSITY * Math.max(window_size + 1, INITIAL_CAPACITY);
+  }
+
+  private void growWindow(int txn_id) {
+    int base = window.base;
+    AtomicReferenceArray<Object> old_slots = window.slots;
+    int capacity = old_slots.length();
+    while (txn_id - base >= capacity) {
+      capacity <<= 1;
+    }
+    AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(capacity);
+    for (int i = 0; i < old_slots.length(); i++) {
+      slots.set(i, old_slots.get(i));
+    }
+    // absorb any stragglers that now fall into the window before publishing it
+    absorbStragglers(base, slots);
+    window = new Window(base, slots);
+  }
+
+  /*
+    Too sparse to grow, move the window up so that txn_id falls in its upper half
+    records left below the new base go to the stragglers
+   */
+  private void slideWindow(int txn_id) {
+    Window old = window;
+    int capacity = old.slots.length();
+    int base = txn_id - capacity / 2;
+    AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(capacity);
+    window_size = 0;
+    for (int i = 0; i < capacity; i++) {
+      Object v = old.slots.get(i);
+      if (v == null) {
+        continue;
+      }
+      int id = old.base + i;
+      if (id >= base) {
+        slots.set(id - base, v);
+        window_size++;
+      } else {
+        putStraggler(id, v);
+      }
+    }
+    if (straggler_max >= old.base + capacity) {
+      // some stragglers sit above the old window, the new one may cover them
+      absorbStragglers(base, slots);
+    }
+    window = new Window(base, slots);
+  }
+
+  /* move the stragglers in [base, base + slots.length) into the given slots */
+  private void absorbStragglers(int base, AtomicReferenceArray<Object> slots) {
+    if (straggler_size == 0) {
+      return;
+    }
+    int[] old_keys = straggler_keys;
+    Object[] old_vals = straggler_vals;
+    straggler_keys = new int[old_keys.length];
+    straggler_vals = new Object[old_vals.length];
+    straggler_size = 0;
+    for (int i = 0; i < old_vals.length; i++) {
+      if (old_vals[i] == null) {
+        continue;
+      }
+      if (old_keys[i] >= base && old_keys[i] - base < slots.length()) {
+        slots.set(old_keys[i] - base, old_vals[i]);
+        window_size++;
+      } else {
+        int slot = findSlot(straggler_keys, straggler_vals, old_keys[i]);
+        straggler_keys[slot] = old_keys[i];
+        straggler_vals[slot] = old_vals[i];
+        straggler_size++;
+      }
+    }
+  }
+
+  private void putStraggler(int txn_id, Object value) {
+    int slot = findSlot(straggler_keys, straggler_vals, txn_id);
+    if (straggler_vals[slot] == null) {
+      straggler_size++;
+    }
+    straggler_keys[slot] = txn_id;
+    straggler_vals[slot] = value;
+    straggler_max = Math.max(straggler_max, txn_id);
+    if (straggler_size > straggler_vals.length * LOAD_FACTOR) {
+      rehashStragglers();
+    }
+  }
+
+  private void rehashStragglers() {
+    int[] old_keys = straggler_keys;
+    Object[] old_vals = straggler_vals;
+    straggler_keys = new int[old_keys.length << 1];
+    straggler_vals = new Object[old_vals.length << 1];
+    for (int i = 0; i < old_vals.length; i++) {
+      if (old_vals[i] != null) {
+        int slot = findSlot(straggler_keys, straggler_vals, old_keys[i]);
+        straggler_keys[slot] = old_keys[i];
+        straggler_vals[slot] = old_vals[i];
+      }
+    }
+  }
+
+  /* linear probing, return the slot holding txn_id or the empty slot it should go to */
+  private static int findSlot(int[] keys, Object[] vals, int txn_id) {
+    int mask = keys.length - 1;
+    int slot = homeSlot(txn_id, mask);
+    while (vals[slot] != null && keys[slot] != txn_id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int homeSlot(int txn_id, int mask) {
+    int hash = txn_id * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+}
@@ -8,88 +8,358 @@
  *
  * The UserNode acts as the participant for the system
  * and responds to transaction requests from the Server coordinator
+ *
+ * In a tree-structured txn it may also act as a relay: it proposes to the nodes
+ * it relays for, streaming the image to them just as Server does, passes the
+ * decision on to them, and answers Server for the whole group with one vote
+ * and one ACK, see TxnMasterRecord
  */
 
 import java.io.*;
-import java.util.HashSet;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class UserNode implements ProjectLib.MessageHandling {
+  /**
+   * Staging area for a Phase I image that is streamed in chunk by chunk
+   * bytes go straight into a file, only the in-order prefix length
+   * and the out-of-order pieces beyond it are remembered
+   */
+  static class ImageAssembly {
+    public final File staging_file;
+    public final int total_len;
+    /* bytes [0, received) are in place */
+    public int received;
+    /* out-of-order pieces beyond received, offset -> end */
+    private final TreeMap<Integer, Integer> pending;
+
+    public ImageAssembly(File staging_file, int total_len) {
+      this.staging_file = staging_file;
+      this.total_len = total_len;
+      this.received = 0;
+      this.pending = new TreeMap<>();
+    }
+
+    public void write(int offset, byte[] chunk) throws IOException {
+      if (offset + chunk.length <= received) {
+        return; // duplicate
+      }
+      try (RandomAccessFile f = new RandomAccessFile(staging_file, STAGING_MODE)) {
+        f.seek(offset);
+        f.write(chunk);
+      }
+      pending.merge(offset, offset + chunk.length, Math::max);
+      while (!pending.isEmpty() && pending.firstKey() <= received) {
+        Map.Entry<Integer, Integer> piece = pending.pollFirstEntry();
+        received = Math.max(received, piece.getValue());
+      }
+    }
+
+    public boolean isComplete() {
+      return received >= total_len;
+    }
+  }
+
   public final String myId;
 
   private static final String SERVER = "Server";
 
   private static final String LOG_NAME = "LOG_PARTICIPANT";
+  private static final String RELAY_LOG_NAME = "LOG_PARTICIPANT_RELAY";
   public static ProjectLib PL;
 
+  /* staged and cached images, kept apart from the user's own images in the working directory */
+  private static final String IMG_DIR = "LOG_PARTICIPANT_IMG";
+  private static final String STAGING_PREFIX = "STAGING_IMG_";
+  private static final String STAGING_MODE = "rw";
+
+  /* bound on the recently seen composite images kept around */
+  private static final int CACHE_ENTRIES = 16;
+  private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+  /* new votes within this window of the first one share one log flush and one reply envelope */
+  private static final long LINGER = 50L;
+
   public TxnSlaveLog log;
 
+  /* the txns this node is still relaying, written out as a whole upon flush if dirty */
+  public TxnRelayLog relays;
+  private boolean relays_dirty = false;
+  /* relayed txns whose outstanding children are to be sent to once the log is flushed */
+  private final ArrayList<TxnRelayRecord> to_relay;
+
+  /* votes waiting out the linger window by destination, none may go out before the next flush */
+  private final HashMap<String, ArrayList<ParticipantMsg>> pending_votes;
+  private boolean flush_pending = false;
+  private final ScheduledExecutorService batcher;
+
+  /* Phase I images still streaming in, by txn id */
+  private final ConcurrentHashMap<Integer, ImageAssembly> assemblies;
+
+  private ImageCache cache;
+
   private boolean finish_recovery = false;
 
   /*
     Persistent logging
+    slots are already updated in place, only need to force the dirty pages out
    */
   private synchronized void flushLog() {
-    try (FileOutputStream f = new FileOutputStream(LOG_NAME, false);
-         BufferedOutputStream b = new BufferedOutputStream(f);
-         ObjectOutputStream o = new ObjectOutputStream(b)) {
-      o.writeObject(log);
-      o.flush();
+    try {
+      log.force();
+      if (relays_dirty) {
+        relays_dirty = false;
+        try (FileOutputStream f = new FileOutputStream(RELAY_LOG_NAME, false);
+             BufferedOutputStream b = new BufferedOutputStream(f);
+             ObjectOutputStream o = new ObjectOutputStream(b)) {
+          o.writeObject(relays);
+          o.flush();
+        }
+      }
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
       PL.fsync();
     }
+    // whatever was lingering is on disk now
+    releaseVotes();
   }
 
   /*
-    Upon recovery
+    Upon recovery, map the slot files instead of deserializing a whole log
    */
-  private synchronized TxnSlaveLog loadLog() {
-    TxnSlaveLog disk_log = null;
-    try (FileInputStream f = new FileInputStream(LOG_NAME);
-         BufferedInputStream b = new BufferedInputStream(f);
-         ObjectInputStream o = new ObjectInputStream(b)) {
-      disk_log = (TxnSlaveLog) o.readObject();
-    } catch (Exception e) {
-      e.printStackTrace();
+  public void recover() throws IOException {
+    File img_dir = new File(IMG_DIR);
+    img_dir.mkdirs();
+    // partial images do not survive a crash, the Coordinator streams them again from offset 0
+    File[] stale = img_dir.listFiles((dir, name) -> name.startsWith(STAGING_PREFIX));
+    if (stale != null) {
+      for (File f : stale) {
+        f.delete();
+      }
     }
-    return disk_log;
-  }
-
-  public void recover() {
-    if (new File(LOG_NAME).exists()) {
+    cache = new ImageCache(img_dir, CACHE_ENTRIES, CACHE_BYTES);
+    log = new TxnSlaveLog(LOG_NAME);
+    if (log.from_disk) {
       System.out.println("Node " + myId + " comes online with DISK log");
-      log = loadLog();
     } else {
       System.out.println("Node " + myId + " comes online with FRESH log");
-      log = new TxnSlaveLog();
+    }
+    relays = loadRelays();
+    ArrayList<TxnRelayRecord> denied = new ArrayList<>();
+    for (TxnRelayRecord relayed : relays.pendingRecords()) {
+      if (relayed.decision == TxnDecision.UNDECIDED && relayed.vote == TxnVote.NOT_VOTE) {
+        // the image is gone with the crash, cannot propose again, deny for the whole group
+        relayed.vote = TxnVote.DENIAL;
+        relays_dirty = true;
+        denied.add(relayed);
+      }
+      // a pending decision goes out again upon the first inspection
+    }
+    if (!denied.isEmpty()) {
+      flushLog(); // FLUSH LOG
+    }
+    for (TxnRelayRecord relayed : denied) {
+      ParticipantMsg.GeneratePhaseIMsg(relayed.txn_id, TxnVote.DENIAL).sendMyselfTo(PL, SERVER);
     }
     finish_recovery = true;
+
+    // resources of approved but undecided txns stay locked until we learn the outcome, ask for it
+    int[] in_doubt = log.inDoubtTxns();
+    if (in_doubt.length > 0) {
+      ParticipantMsg inquiry = ParticipantMsg.GenerateInquiryMsg(in_doubt);
+      inquiry.sendMyselfTo(PL, SERVER);
+    }
+  }
+
+  private TxnRelayLog loadRelays() {
+    if (!new File(RELAY_LOG_NAME).exists()) {
+      return new TxnRelayLog();
+    }
+    TxnRelayLog disk_relays = new TxnRelayLog();
+    try (FileInputStream f = new FileInputStream(RELAY_LOG_NAME);
+         BufferedInputStream b = new BufferedInputStream(f);
+         ObjectInputStream o = new ObjectInputStream(b)) {
+      disk_relays = (TxnRelayLog) o.readObject();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return disk_relays;
   }
 
   public UserNode(String id) {
     myId = id;
+    assemblies = new ConcurrentHashMap<>();
+    to_relay = new ArrayList<>();
+    pending_votes = new HashMap<>();
+    batcher = Executors.newSingleThreadScheduledExecutor();
   }
 
-  private void dealProposal(CoordinatorMsg msg) {
+  /*
+    put a Phase I chunk into place, return the full image once every byte has arrived
+    or right away if the image is already in cache
+   */
+  private byte[] assembleImage(CoordinatorMsg msg) throws IOException {
+    byte[] cached = cache.get(msg.img_hash);
+    if (cached != null) {
+      discardImage(msg.txn_id);
+      return cached;
+    }
+    ImageAssembly assembly = assemblies.computeIfAbsent(msg.txn_id,
+        id -> new ImageAssembly(new File(IMG_DIR, STAGING_PREFIX + id), msg.total_len));
+    assembly.write(msg.offset, msg.img);
+    if (!assembly.isComplete()) {
+      return null;
+    }
+    byte[] img = new byte[0];
+    File staging = assembly.staging_file;
+    if (staging.exists()) {
+      img = Files.readAllBytes(staging.toPath());
+      if (ImageCache.hashOf(img).equals(msg.img_hash)) {
+        cache.adopt(msg.img_hash, staging);
+      }
+    }
+    discardImage(msg.txn_id);
+    return img;
+  }
+
+  private void discardImage(int txn_id) {
+    ImageAssembly assembly = assemblies.remove(txn_id);
+    if (assembly != null) {
+      assembly.staging_file.delete();
+    }
+  }
+
+  private void dealProposal(String from, CoordinatorMsg msg) throws IOException {
+    ArrayList<ParticipantMsg> replies = new ArrayList<>();
+    boolean dirty = evaluateProposal(msg, replies);
+    answerProposals(from, replies, dirty);
+  }
+
+  /* a batch of proposals or decisions shares one log flush and one reply envelope */
+  private void dealBatch(String from, CoordinatorMsg envelope) throws IOException {
+    ArrayList<ParticipantMsg> replies = new ArrayList<>();
+    boolean dirty = false;
+    try {
+      for (CoordinatorMsg msg : envelope.batch) {
+        if (msg.phase == TxnPhase.PHASE_I) {
+          dirty |= evaluateProposal(msg, replies);
+        } else {
+          dirty |= evaluateDecision(msg, replies);
+        }
+      }
+    } finally {
+      // whatever went on book before a failure is still flushed, relayed out and answered
+      if (envelope.phase == TxnPhase.PHASE_I) {
+        answerProposals(from, replies, dirty);
+      } else {
+        if (dirty) {
+          flushLog(); // LOG FLUSH
+          relayOut();
+        }
+        sendTogether(from, envelope.phase, replies);
+      }
+    }
+  }
+
+  /*
+    Chunk ACKs go out right away, a vote waits for the log flush that
+    LINGER after the first new vote puts every vote since on disk at once
+    so votes completing close together, e.g. the final chunks of a burst of commits,
+    share one flush and travel back in one envelope per destination
+   */
+  private void answerProposals(String from, ArrayList<ParticipantMsg> replies, boolean dirty) {
+    if (dirty && !flush_pending) {
+      flush_pending = true;
+      batcher.schedule(this::flushVotes, LINGER, TimeUnit.MILLISECONDS);
+    }
+    ArrayList<ParticipantMsg> right_away = new ArrayList<>();
+    for (ParticipantMsg reply : replies) {
+      if (reply.vote != TxnVote.NOT_VOTE && flush_pending) {
+        // the vote, or one it may repeat, is not on disk yet
+        pending_votes.computeIfAbsent(from, d -> new ArrayList<>()).add(reply);
+      } else {
+        right_away.add(reply);
+      }
+    }
+    sendTogether(from, TxnPhase.PHASE_I, right_away);
+  }
+
+  /* linger window is over, flush once and answer every vote since, unless a flush beat us to it */
+  private synchronized void flushVotes() {
+    if (flush_pending) {
+      flushLog(); // LOG FLUSH
+    }
+    // relayed txns are on disk either way
+    relayOut();
+  }
+
+  /* the log has just been flushed, the lingering votes may go */
+  private void releaseVotes() {
+    flush_pending = false;
+    for (Map.Entry<String, ArrayList<ParticipantMsg>> entry : pending_votes.entrySet()) {
+      sendTogether(entry.getKey(), TxnPhase.PHASE_I, entry.getValue());
+    }
+    pending_votes.clear();
+  }
+
+  /* one reply goes out as is, several to the same node travel in one envelope, none not at all */
+  private static void sendTogether(String dest, TxnPhase phase, ArrayList<ParticipantMsg> msgs) {
+    if (msgs.size() == 1) {
+      msgs.get(0).sendMyselfTo(PL, dest);
+    } else if (msgs.size() > 1) {
+      ParticipantMsg envelope =
+          ParticipantMsg.GenerateBatchMsg(phase, msgs.toArray(new ParticipantMsg[0]));
+      envelope.sendMyselfTo(PL, dest);
+    }
+  }
+
+  /*
+    Work out the reply to a single proposal without flushing or sending anything
+    return true if a new vote went on book, which must be flushed before replying
+   */
+  private boolean evaluateProposal(CoordinatorMsg msg, ArrayList<ParticipantMsg> replies)
+      throws IOException {
     assert (msg.phase == TxnPhase.PHASE_I);
     TxnSlaveRecord old_record = log.retrieveRecord(msg.txn_id);
     if (old_record != null) {
+      TxnRelayRecord relayed = relays.retrieveRecord(msg.txn_id);
+      if (relayed != null) {
+        // answer for the whole group, or stay silent till the group has voted
+        if (relayed.vote != TxnVote.NOT_VOTE) {
+          replies.add(ParticipantMsg.GeneratePhaseIMsg(msg.txn_id, relayed.vote));
+        }
+        return false;
+      }
       // already make up decision, just reply again
       assert (old_record.vote != TxnVote.NOT_VOTE);
-      ParticipantMsg participantMsg = ParticipantMsg.GeneratePhaseIMsg(msg.txn_id, old_record.vote);
-      participantMsg.sendMyselfTo(PL, SERVER);
-      return;
+      replies.add(ParticipantMsg.GeneratePhaseIMsg(msg.txn_id, old_record.vote));
+      return false;
     }
 
-    boolean vote = PL.askUser(msg.img, msg.resource_requested);
+    byte[] img = assembleImage(msg);
+    if (img == null) {
+      // more chunks to come, let Coordinator know how far we are
+      int received = assemblies.get(msg.txn_id).received;
+      replies.add(ParticipantMsg.GenerateChunkAckMsg(msg.txn_id, received, msg.epoch));
+      return false;
+    }
+
+    boolean vote = PL.askUser(img, msg.resource_requested);
     if (vote) {
       // check if file really exists and not locked
       for (String f : msg.resource_requested) {
         boolean not_exist = !new File(f).exists();
-        boolean locked = log.locked_resources.containsKey(f);
-        if (not_exist || locked) {
+        boolean locked = log.isLocked(f);
+        boolean untrackable = !TxnSlaveLog.canTrack(f);
+        if (not_exist || locked || untrackable) {
           vote = false;
           break;
         }
@@ -97,53 +367,249 @@ public class UserNode implements ProjectLib.MessageHandling {
       // all valid, vote passed, lock resources
       if (vote) {
         for (String f : msg.resource_requested) {
-          log.locked_resources.put(f, msg.txn_id);
+          log.lockResource(f, msg.txn_id);
         }
       }
     }
     TxnVote txn_vote = (vote) ? TxnVote.APPROVAL : TxnVote.DENIAL;
     // decision is made and on book now
-    log.createRecord(msg.txn_id, msg.filename, msg.resource_requested, txn_vote);
-    flushLog(); // LOG FLUSH
+    log.createRecord(msg.txn_id, txn_vote);
+    if (msg.relay_to != null && txn_vote == TxnVote.APPROVAL) {
+      // propose to the group once this is flushed, the reply is the group's vote
+      relays.createRecord(
+          msg.txn_id, msg.filename, img, msg.img_hash, msg.relay_to, msg.relay_files);
+      relays_dirty = true;
+      to_relay.add(relays.retrieveRecord(msg.txn_id));
+      return true;
+    }
+    // my own DENIAL is the group's too, no need to ask the others
+    replies.add(ParticipantMsg.GeneratePhaseIMsg(msg.txn_id, txn_vote));
+    return true;
+  }
+
+  /* send what the freshly flushed relayed txns owe their children */
+  private void relayOut() {
+    for (TxnRelayRecord relayed : to_relay) {
+      if (relayed.decision == TxnDecision.UNDECIDED) {
+        proposeToChildren(relayed);
+      } else {
+        sendDecisionToChildren(relayed);
+      }
+    }
+    to_relay.clear();
+  }
+
+  /* offer the image to every node relayed for by its hash, chunks follow on a cache miss */
+  private void proposeToChildren(TxnRelayRecord relayed) {
+    relayed.streams = new HashMap<>();
+    for (int k = 0; k < relayed.children.length; k++) {
+      String child = relayed.children[k];
+      ImageStream stream = new ImageStream(relayed.txn_id, relayed.filename, relayed.img,
+          relayed.img_hash, child, relayed.children_files[k], null, null);
+      relayed.streams.put(child, stream);
+      stream.probe().sendMyselfTo(PL, child);
+    }
+  }
+
+  /* a node relayed for reports how far it holds the image, keep its stream going */
+  private void continueStream(TxnRelayRecord relayed, String child, ParticipantMsg msg) {
+    ImageStream stream = (relayed.streams == null) ? null : relayed.streams.get(child);
+    if (stream == null) {
+      return;
+    }
+    boolean restart = stream.report(msg.next_offset, msg.epoch);
+    for (CoordinatorMsg chunk : stream.pump(restart)) {
+      chunk.sendMyselfTo(PL, child);
+    }
+  }
+
+  /* a stalled stream to a node relayed for starts over from what it has acknowledged */
+  private void resumeStream(ImageStream stream) {
+    if (stream.resume()) {
+      stream.probe().sendMyselfTo(PL, stream.dest);
+      return;
+    }
+    for (CoordinatorMsg chunk : stream.pump(true)) {
+      chunk.sendMyselfTo(PL, stream.dest);
+    }
+  }
+
+  /* pass the decision on to the nodes yet to ACK it */
+  private void sendDecisionToChildren(TxnRelayRecord relayed) {
+    relayed.sent_time = System.currentTimeMillis();
+    CoordinatorMsg msg = CoordinatorMsg.GeneratePhaseIIMsg(relayed.txn_id, relayed.decision);
+    for (String child : relayed.outstanding_children) {
+      msg.sendMyselfTo(PL, child);
+    }
+  }
+
+  /* a node relayed for has replied, answer Server once the whole group has */
+  private void dealChildReply(String from, ParticipantMsg msg) {
+    if (msg.batch != null) {
+      for (ParticipantMsg reply : msg.batch) {
+        dealChildReply(from, reply);
+      }
+      return;
+    }
+    TxnRelayRecord relayed = relays.retrieveRecord(msg.txn_id);
+    if (relayed == null || !relayed.outstanding_children.contains(from)) {
+      return;
+    }
+    ParticipantMsg answer = null;
+    if (msg.phase == TxnPhase.PHASE_I && relayed.decision == TxnDecision.UNDECIDED) {
+      if (relayed.vote != TxnVote.NOT_VOTE) {
+        // the group has voted already
+        return;
+      }
+      if (msg.vote == TxnVote.NOT_VOTE) {
+        // image still coming in
+        continueStream(relayed, from, msg);
+        return;
+      }
+      relayed.outstanding_children.remove(from);
+      if (msg.vote == TxnVote.DENIAL) {
+        relayed.vote = TxnVote.DENIAL;
+      } else if (relayed.outstanding_children.isEmpty()) {
+        relayed.vote = TxnVote.APPROVAL;
+      }
+      if (relayed.vote != TxnVote.NOT_VOTE) {
+        answer = ParticipantMsg.GeneratePhaseIMsg(relayed.txn_id, relayed.vote);
+      }
+    } else if (msg.phase == TxnPhase.PHASE_II && relayed.decision != TxnDecision.UNDECIDED) {
+      relayed.outstanding_children.remove(from);
+      if (relayed.outstanding_children.isEmpty()) {
+        // nothing left to relay, drop it so the log does not grow with history
+        relays.removeRecord(relayed.txn_id);
+        answer = ParticipantMsg.GeneratePhaseIIMsg(relayed.txn_id);
+      }
+    } else {
+      return;
+    }
+    relays_dirty = true;
+    if (answer != null) {
+      flushLog(); // LOG FLUSH
+      answer.sendMyselfTo(PL, SERVER);
+    }
+  }
+
+  /*
+    Main Loop for checking on the nodes relayed for
+    a stalled stream to a node is resumed like Server does, after that
+    a node that does not vote in time is deemed as DENIAL for the whole group
+    a decision must be resent until the node ACKs
+   */
+  public synchronized void inspectRelays() {
+    if (!finish_recovery) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    ArrayList<ParticipantMsg> denials = new ArrayList<>();
+    for (TxnRelayRecord relayed : relays.pendingRecords()) {
+      if (relayed.decision != TxnDecision.UNDECIDED) {
+        if (now - relayed.sent_time > ImageStream.TIMEOUT) {
+          sendDecisionToChildren(relayed);
+        }
+      } else if (relayed.vote == TxnVote.NOT_VOTE && !inspectStreams(relayed, now)) {
+        System.out.println(myId + " relays txn " + relayed.txn_id + ", group has expired, DENIAL");
+        relayed.vote = TxnVote.DENIAL;
+        relays_dirty = true;
+        denials.add(ParticipantMsg.GeneratePhaseIMsg(relayed.txn_id, TxnVote.DENIAL));
+      }
+    }
+    if (!denials.isEmpty()) {
+      flushLog(); // LOG FLUSH
+    }
+    for (ParticipantMsg denial : denials) {
+      denial.sendMyselfTo(PL, SERVER);
+    }
+  }
+
+  /*
+    Resume the stalled streams of a relayed txn
+    return false if one has run out of retries, or the group was never proposed to
+   */
+  private boolean inspectStreams(TxnRelayRecord relayed, long now) {
+    if (relayed.streams == null) {
+      // fine while it waits for the flush, otherwise it was never proposed to the group
+      return to_relay.contains(relayed);
+    }
+    for (String child : relayed.outstanding_children) {
+      ImageStream stream = relayed.streams.get(child);
+      if (now - stream.active_time <= ImageStream.CHILD_TIMEOUT) {
+        continue;
+      }
+      if (stream.resends >= ImageStream.CHUNK_RETRIES) {
+        return false;
+      }
+      System.out.println(myId + " relays txn " + relayed.txn_id + " to Node " + child
+          + ", stalled, RESUME from offset " + stream.acked);
+      resumeStream(stream);
+    }
+    return true;
+  }
+
+  private void dealDecision(String from, CoordinatorMsg msg) throws IOException {
+    ArrayList<ParticipantMsg> replies = new ArrayList<>();
+    if (evaluateDecision(msg, replies)) {
+      flushLog(); // FLUSH LOG
+      relayOut();
+    }
+    for (ParticipantMsg participantMsg : replies) {
+      participantMsg.sendMyselfTo(PL, from);
+    }
+  }
 
-    ParticipantMsg participantMsg = ParticipantMsg.GeneratePhaseIMsg(msg.txn_id, txn_vote);
-    participantMsg.sendMyselfTo(PL, SERVER);
+  /*
+    Apply a single decision without flushing or sending anything
+    return true if the log changed, which must be flushed before ACKing
+    a relay only ACKs once every node it relays for has
+   */
+  private boolean evaluateDecision(CoordinatorMsg msg, ArrayList<ParticipantMsg> replies)
+      throws IOException {
+    boolean dirty = applyDecision(msg);
+    TxnRelayRecord relayed = relays.retrieveRecord(msg.txn_id);
+    if (relayed != null) {
+      if (relayed.decision == TxnDecision.UNDECIDED) {
+        // pass it on to the group once this is flushed, the image is not needed any more
+        relayed.decision = msg.decision;
+        relayed.img = null;
+        relayed.streams = null;
+        relayed.resetOutstanding();
+        relays_dirty = true;
+        to_relay.add(relayed);
+        dirty = true;
+      }
+      if (!relayed.outstanding_children.isEmpty()) {
+        return dirty;
+      }
+    }
+    // ACK back
+    replies.add(ParticipantMsg.GeneratePhaseIIMsg(msg.txn_id));
+    return dirty;
   }
 
-  private void dealDecision(CoordinatorMsg msg) {
+  /* apply a decision to my own resources, return true if the log changed */
+  private boolean applyDecision(CoordinatorMsg msg) throws IOException {
     assert (msg.phase == TxnPhase.PHASE_II);
     assert (msg.decision != TxnDecision.UNDECIDED);
+    discardImage(msg.txn_id);
     TxnSlaveRecord record = log.retrieveRecord(msg.txn_id);
     if (record == null) {
       assert (msg.decision == TxnDecision.ABORT);
       // I must have timed out before and Server implicitly think I am giving Denial back
-      TxnSlaveRecord r =
-          log.createRecord(msg.txn_id, msg.filename, msg.resource_requested, TxnVote.DENIAL);
-      r.decision = msg.decision;
-      flushLog();
-
-      // ACK BACK
-      ParticipantMsg participantMsg = ParticipantMsg.GeneratePhaseIIMsg(msg.txn_id);
-      participantMsg.sendMyselfTo(PL, SERVER);
-      return;
+      TxnSlaveRecord r = log.createRecord(msg.txn_id, TxnVote.DENIAL);
+      log.recordDecision(r, msg.decision);
+      return true;
     }
 
     if (record.decision == msg.decision) {
       // I have already received this decision message, just ACK back again
-      ParticipantMsg participantMsg = ParticipantMsg.GeneratePhaseIIMsg(msg.txn_id);
-      participantMsg.sendMyselfTo(PL, SERVER);
-      return;
+      return false;
     }
 
-    record.decision = msg.decision;
-    HashSet<String> locked_resources = new HashSet<>();
-    for (Map.Entry<String, Integer> entry : log.locked_resources.entrySet()) {
-      if (entry.getValue() == msg.txn_id) {
-        locked_resources.add(entry.getKey());
-      }
-    }
+    ArrayList<String> locked_resources = log.resourcesLockedBy(msg.txn_id);
 
-    if (record.decision == TxnDecision.COMMIT) {
+    if (msg.decision == TxnDecision.COMMIT) {
       // delete committed resources if any
       for (String f : locked_resources) {
         boolean success = new File(f).delete();
@@ -153,30 +619,50 @@ public class UserNode implements ProjectLib.MessageHandling {
 
     // release locked resources if any
     for (String f : locked_resources) {
-      log.locked_resources.remove(f);
+      log.releaseResource(f);
     }
 
-    flushLog(); // FLUSH LOG
+    // decision goes on book last, so a crash in between redoes the steps above on resend
+    log.recordDecision(record, msg.decision);
+    return true;
+  }
 
-    // ACK back
-    ParticipantMsg participantMsg = ParticipantMsg.GeneratePhaseIIMsg(msg.txn_id);
-    participantMsg.sendMyselfTo(PL, SERVER);
+  /* either a coordinator's message, from Server or a relay, or a reply from a node relayed for */
+  private static Serializable deserialize(ProjectLib.Message msg) {
+    Serializable payload = null;
+    try (ByteArrayInputStream bis = new ByteArrayInputStream(msg.body);
+         ObjectInputStream ois = new ObjectInputStream(bis)) {
+      payload = (Serializable) ois.readObject();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return payload;
   }
 
   @Override
   public synchronized boolean deliverMessage(ProjectLib.Message msg) {
     while (!this.finish_recovery) {
     }; // guard recovery
-    CoordinatorMsg coordinatorMsg = CoordinatorMsg.deserialize(msg);
-    System.out.println(
-        myId + ": Got message from " + msg.addr + " about Msg: " + coordinatorMsg.toString());
-    /* Proposal */
-    if (coordinatorMsg.phase == TxnPhase.PHASE_I) {
-      dealProposal(coordinatorMsg);
+    Serializable payload = deserialize(msg);
+    System.out.println(myId + ": Got message from " + msg.addr + " about Msg: " + payload);
+    if (payload instanceof ParticipantMsg) {
+      dealChildReply(msg.addr, (ParticipantMsg) payload);
+      return true;
     }
-
-    if (coordinatorMsg.phase == TxnPhase.PHASE_II) {
-      dealDecision(coordinatorMsg);
+    CoordinatorMsg coordinatorMsg = (CoordinatorMsg) payload;
+    try {
+      if (coordinatorMsg.batch != null) {
+        dealBatch(msg.addr, coordinatorMsg);
+      } else if (coordinatorMsg.phase == TxnPhase.PHASE_I) {
+        /* Proposal */
+        dealProposal(msg.addr, coordinatorMsg);
+      } else if (coordinatorMsg.phase == TxnPhase.PHASE_II) {
+        dealDecision(msg.addr, coordinatorMsg);
+      } else if (coordinatorMsg.phase == TxnPhase.HEARTBEAT) {
+        ParticipantMsg.GenerateHeartbeatMsg().sendMyselfTo(PL, msg.addr);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
     }
     return true;
   }
@@ -188,7 +674,10 @@ public class UserNode implements ProjectLib.MessageHandling {
     PL = new ProjectLib(Integer.parseInt(args[0]), args[1], UN);
     UN.recover();
 
+    // main loop for inspecting the nodes relayed for
     while (true) {
+      Thread.sleep(ImageStream.INTERVAL);
+      UN.inspectRelays();
     }
   }
 }